@@ -0,0 +1,55 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.PersistenceConfig;
+import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Storage context backed by a throwaway in-process postgres, so the vendor-locked queries run as in production
+ *
+ * @author doc
+ */
+public class BenchDatabase implements AutoCloseable {
+	private final EmbeddedPostgres postgres;
+	private final AnnotationConfigApplicationContext context;
+
+	@Configuration
+	public static class BenchConfig {
+		@Bean(name = "dataSourceProperties")
+		public Properties benchProperties() {
+			return new Properties() {
+				{
+					setProperty("hibernate.hbm2ddl.auto", "create");
+					setProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQL94Dialect");
+					setProperty("hibernate.jdbc.batch_size", "50");
+					setProperty("hibernate.order_inserts", "true");
+					setProperty("hibernate.order_updates", "true");
+				}
+			};
+		}
+	}
+
+	public BenchDatabase() throws IOException {
+		postgres = EmbeddedPostgres.start();
+
+		context = new AnnotationConfigApplicationContext();
+		context.getBeanFactory().registerSingleton("benchDataSource", postgres.getPostgresDatabase());
+		context.register(PersistenceConfig.class, BenchConfig.class);
+		context.refresh();
+	}
+
+	public <T> T getBean(Class<T> type) {
+		return context.getBean(type);
+	}
+
+	@Override
+	public void close() throws IOException {
+		context.close();
+		postgres.close();
+	}
+}
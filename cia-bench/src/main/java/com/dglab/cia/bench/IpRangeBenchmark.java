@@ -0,0 +1,86 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.IpRange;
+import com.dglab.cia.IpWhiteList;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * White-list check done by the proxy for every POST, with a list shaped like the Valve regions file
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IpRangeBenchmark {
+	private Collection<IpRange> whiteList = new HashSet<>();
+	private IpWhiteList compiledWhiteList;
+	private String[] ips;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(42);
+		Collection<String> listed = new ArrayList<>();
+
+		for (int i = 0; i < 60; i++) {
+			String network = (100 + i) + "." + random.nextInt(256) + "." + random.nextInt(256) + ".0";
+			whiteList.add(new IpRange(network, "24"));
+			listed.add(network);
+		}
+
+		// Dash ranges get expanded into one range per address
+		for (int i = 0; i < 40; i++) {
+			String prefix = (200 + i % 20) + "." + random.nextInt(256) + "." + random.nextInt(256) + ".";
+
+			for (int last = 0; last < 16; last++) {
+				whiteList.add(new IpRange(prefix + last, null));
+			}
+		}
+
+		whiteList.add(new IpRange("127.0.0.1", null));
+		compiledWhiteList = new IpWhiteList(whiteList);
+
+		ips = new String[1024];
+		String[] networks = listed.toArray(new String[0]);
+
+		for (int i = 0; i < ips.length; i++) {
+			if (i % 2 == 0) {
+				String network = networks[random.nextInt(networks.length)];
+				ips[i] = network.substring(0, network.length() - 1) + random.nextInt(256);
+			} else {
+				ips[i] = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+			}
+		}
+	}
+
+	private String nextIp() {
+		next = (next + 1) & (ips.length - 1);
+		return ips[next];
+	}
+
+	@Benchmark
+	public boolean isInRange() {
+		return whiteList.iterator().next().isInRange(nextIp());
+	}
+
+	@Benchmark
+	public boolean whiteListCheck() {
+		String ip = nextIp();
+		return whiteList.stream().anyMatch(range -> range.isInRange(ip));
+	}
+
+	@Benchmark
+	public boolean compiledWhiteListCheck() {
+		return compiledWhiteList.contains(nextIp());
+	}
+}
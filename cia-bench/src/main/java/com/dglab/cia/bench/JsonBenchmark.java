@@ -0,0 +1,187 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.json.*;
+import com.dglab.cia.json.util.ObjectMapperFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (De)serialization of the payloads exchanged with the game servers and the view,
+ * with the standard mapper and the opt-in fast one
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(3)
+public class JsonBenchmark {
+	@Param({"false", "true"})
+	public boolean fast;
+
+	private ObjectMapper mapper;
+
+	private MatchInfo matchInfo;
+	private RoundInfo roundInfo;
+	private MatchDetails matchDetails;
+	private RankUpdateDetails rankUpdateDetails;
+	private List<RankedPlayer> topPlayers;
+
+	private String matchInfoJson;
+	private String roundInfoJson;
+	private String rankUpdateDetailsJson;
+
+	public static MatchInfo createMatchInfo(int players) {
+		Collection<PlayerInfo> playerInfos = new ArrayList<>();
+
+		for (int i = 0; i < players; i++) {
+			PlayerInfo playerInfo = new PlayerInfo(76561198000000000L + i, (byte) (i % 2 + 1));
+			playerInfo.setName("Player " + i);
+			playerInfos.add(playerInfo);
+		}
+
+		MatchInfo info = new MatchInfo("3v3", "1.7.4", playerInfos, MatchMap.RANKED_6);
+		info.setMatchId(3123456789L);
+		info.setDateTime(Instant.now());
+
+		return info;
+	}
+
+	public static RoundInfo createRoundInfo(int players, short number) {
+		Collection<PlayerRoundInfo> playerInfos = new ArrayList<>();
+
+		for (int i = 0; i < players; i++) {
+			PlayerRoundInfo playerInfo = new PlayerRoundInfo(76561198000000000L + i, (short) 12, (short) 48, (short) 3, (byte) 2);
+			playerInfo.setHero(SyntheticMatches.HEROES[i % SyntheticMatches.HEROES.length]);
+			playerInfos.add(playerInfo);
+		}
+
+		RoundInfo info = new RoundInfo(playerInfos);
+		info.setMatchId(3123456789L);
+		info.setRoundNumber(number);
+		info.setWinner((byte) 1);
+
+		return info;
+	}
+
+	public static RankUpdateDetails createRankUpdateDetails(int players) {
+		Map<Long, RankAndStars> previous = new HashMap<>();
+		Map<Long, RankAndStars> updated = new HashMap<>();
+
+		for (int i = 0; i < players; i++) {
+			previous.put(76561198000000000L + i, new RankAndStars((byte) (10 + i), (byte) 2));
+
+			RankAndStars rank = new RankAndStars((byte) (9 + i), (byte) 1);
+
+			if (i == 0) {
+				rank.setStreak(new Streak((short) 3, (short) 7));
+			}
+
+			updated.put(76561198000000000L + i, rank);
+		}
+
+		RankUpdateDetails details = new RankUpdateDetails();
+		details.setPrevious(previous);
+		details.setUpdated(updated);
+
+		return details;
+	}
+
+	public static List<RankedPlayer> createTopPlayers(int players) {
+		List<RankedPlayer> result = new ArrayList<>();
+
+		for (int i = 0; i < players; i++) {
+			RankedPlayer player = new RankedPlayer(76561198000000000L + i, (byte) 1);
+			player.setName("Player " + i);
+			player.setAvatarUrl("https://steamcdn-a.akamaihd.net/steamcommunity/public/images/avatars/fe/fef49e7fa7e1997310d705b2a6158ff8dc1cdfeb_medium.jpg");
+
+			if (i % 3 == 0) {
+				player.setStreak(new Streak((short) (i % 7), (short) 12));
+			}
+
+			result.add(player);
+		}
+
+		return result;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		mapper = ObjectMapperFactory.createObjectMapper(fast);
+
+		matchInfo = createMatchInfo(6);
+		roundInfo = createRoundInfo(6, (short) 0);
+
+		Collection<RoundInfo> rounds = new ArrayList<>();
+
+		for (short i = 0; i < 10; i++) {
+			rounds.add(createRoundInfo(6, i));
+		}
+
+		matchDetails = new MatchDetails(matchInfo, rounds);
+		rankUpdateDetails = createRankUpdateDetails(6);
+		topPlayers = createTopPlayers(50);
+
+		// Both mappers have to produce the same JSON for the comparison to mean anything
+		ObjectMapper standard = ObjectMapperFactory.createObjectMapper(false);
+
+		if (!standard.writeValueAsString(matchDetails).equals(mapper.writeValueAsString(matchDetails))) {
+			throw new IllegalStateException("Mappers disagree on MatchDetails");
+		}
+
+		// Game servers don't send the derived player count
+		ObjectNode matchInfoNode = mapper.valueToTree(matchInfo);
+		matchInfoNode.remove("playerNumber");
+
+		matchInfoJson = mapper.writeValueAsString(matchInfoNode);
+		roundInfoJson = mapper.writeValueAsString(roundInfo);
+		rankUpdateDetailsJson = mapper.writeValueAsString(rankUpdateDetails);
+	}
+
+	@Benchmark
+	public String writeMatchInfo() throws Exception {
+		return mapper.writeValueAsString(matchInfo);
+	}
+
+	@Benchmark
+	public MatchInfo readMatchInfo() throws Exception {
+		return mapper.readValue(matchInfoJson, MatchInfo.class);
+	}
+
+	@Benchmark
+	public String writeRoundInfo() throws Exception {
+		return mapper.writeValueAsString(roundInfo);
+	}
+
+	@Benchmark
+	public RoundInfo readRoundInfo() throws Exception {
+		return mapper.readValue(roundInfoJson, RoundInfo.class);
+	}
+
+	@Benchmark
+	public String writeMatchDetails() throws Exception {
+		return mapper.writeValueAsString(matchDetails);
+	}
+
+	@Benchmark
+	public byte[] writeTopPlayers() throws Exception {
+		return mapper.writeValueAsBytes(topPlayers);
+	}
+
+	@Benchmark
+	public byte[] writeRankUpdateDetails() throws Exception {
+		return mapper.writeValueAsBytes(rankUpdateDetails);
+	}
+
+	@Benchmark
+	public RankUpdateDetails readRankUpdateDetails() throws Exception {
+		return mapper.readValue(rankUpdateDetailsJson, RankUpdateDetails.class);
+	}
+}
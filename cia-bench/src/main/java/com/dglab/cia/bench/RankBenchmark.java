@@ -0,0 +1,69 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.database.LobbyFingerprint;
+import com.dglab.cia.database.Match;
+import com.dglab.cia.json.MatchMap;
+import com.dglab.cia.json.RankUpdateDetails;
+import com.dglab.cia.persistence.MatchDao;
+import com.dglab.cia.persistence.RankService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Rank processing of a finished ranked match, including the database round trips
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RankBenchmark {
+	private BenchDatabase database;
+	private RankService rankService;
+
+	private long teamsMatch = 1;
+	private long duelMatch = 2;
+
+	@Setup
+	public void setup() throws Exception {
+		database = new BenchDatabase();
+		rankService = database.getBean(RankService.class);
+
+		SyntheticMatches matches = new SyntheticMatches(6);
+		MatchDao matchDao = database.getBean(MatchDao.class);
+
+		Match teams = matches.createMatch(teamsMatch, "3v3", 6, MatchMap.RANKED_6, 10);
+		lobby(teams);
+		matchDao.putMatch(teams);
+
+		Match duel = matches.createMatch(duelMatch, "ffa", 2, MatchMap.RANKED_4, 10);
+		lobby(duel);
+		matchDao.putMatch(duel);
+	}
+
+	private void lobby(Match match) {
+		match.setLobby(LobbyFingerprint.of(
+				match.getMatchData().stream().map(data -> data.getPk().getSteamId64()).collect(Collectors.toList())
+		));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	@Benchmark
+	public RankUpdateDetails processTeamsMatch() {
+		return rankService.processMatchResults(teamsMatch);
+	}
+
+	@Benchmark
+	public RankUpdateDetails processDuelMatch() {
+		return rankService.processMatchResults(duelMatch);
+	}
+}
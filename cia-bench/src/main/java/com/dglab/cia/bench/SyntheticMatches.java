@@ -0,0 +1,100 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.database.*;
+import com.dglab.cia.json.MatchMap;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates matches that look like the ones sent by the game servers
+ *
+ * @author doc
+ */
+public class SyntheticMatches {
+	public static final String[] HEROES = {
+			"npc_dota_hero_brewmaster", "npc_dota_hero_ember_spirit", "npc_dota_hero_earth_spirit",
+			"npc_dota_hero_lycan", "npc_dota_hero_pudge", "npc_dota_hero_sniper", "npc_dota_hero_tinker",
+			"npc_dota_hero_venomancer", "npc_dota_hero_zeus", "npc_dota_hero_undying", "npc_dota_hero_ursa",
+			"npc_dota_hero_lina", "npc_dota_hero_invoker", "npc_dota_hero_storm_spirit", "npc_dota_hero_tusk"
+	};
+
+	private final Random random = new Random(42);
+	private final long firstPlayer = 76561198000000000L;
+	private final int playerPool;
+
+	public SyntheticMatches(int playerPool) {
+		this.playerPool = playerPool;
+	}
+
+	public long player(int index) {
+		return firstPlayer + index;
+	}
+
+	public Match createMatch(long matchId, String mode, int players, MatchMap map, int rounds) {
+		Match match = new Match();
+		match.setMatchId(matchId);
+		match.setMode(mode);
+		match.setVersion("bench");
+		match.setPlayers((byte) players);
+		match.setMap(map);
+		match.setDateTime(Instant.now().minus(random.nextInt(6 * 24 * 60), ChronoUnit.MINUTES));
+
+		int teams = "ffa".equals(mode) ? players : 2;
+		int first = random.nextInt(playerPool);
+		List<Long> steamIds = new ArrayList<>();
+
+		for (int i = 0; i < players; i++) {
+			long steamId64 = player((first + i) % playerPool);
+			steamIds.add(steamId64);
+
+			PlayerMatchData.Pk pk = new PlayerMatchData.Pk();
+			pk.setMatchId(matchId);
+			pk.setSteamId64(steamId64);
+
+			PlayerMatchData data = new PlayerMatchData();
+			data.setPk(pk);
+			data.setTeam((byte) (i % teams + 1));
+			data.setMatch(match);
+
+			match.getMatchData().add(data);
+		}
+
+		for (short number = 0; number < rounds; number++) {
+			Round.Pk roundKey = new Round.Pk();
+			roundKey.setMatchId(matchId);
+			roundKey.setNumber(number);
+
+			Round round = new Round();
+			round.setPk(roundKey);
+			round.setMatch(match);
+			round.setWinner((byte) (random.nextInt(teams) + 1));
+
+			for (Long steamId64 : steamIds) {
+				PlayerRoundData.Pk playerKey = new PlayerRoundData.Pk();
+				playerKey.setMatchId(matchId);
+				playerKey.setNumber(number);
+				playerKey.setSteamId64(steamId64);
+
+				PlayerRoundData roundData = new PlayerRoundData();
+				roundData.setPk(playerKey);
+				roundData.setRound(round);
+				roundData.setHero(HEROES[random.nextInt(HEROES.length)]);
+				roundData.setScore((short) random.nextInt(10));
+				roundData.setDamageDealt((short) random.nextInt(40));
+				roundData.setProjectilesFired((short) random.nextInt(100));
+
+				round.getPlayerRoundData().add(roundData);
+			}
+
+			match.getRounds().add(round);
+		}
+
+		match.setWinnerTeam((byte) (random.nextInt(teams) + 1));
+
+		return match;
+	}
+}
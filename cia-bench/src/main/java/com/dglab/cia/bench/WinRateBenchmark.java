@@ -0,0 +1,78 @@
+package com.dglab.cia.bench;
+
+import com.dglab.cia.database.PlayerRank;
+import com.dglab.cia.database.RankPrimaryKey;
+import com.dglab.cia.json.MatchMap;
+import com.dglab.cia.json.RankedMode;
+import com.dglab.cia.persistence.MatchDao;
+import com.dglab.cia.persistence.RankDao;
+import com.dglab.cia.persistence.StatsDao;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full hero win-rate recalculation over a week of synthetic matches
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WinRateBenchmark {
+	@Param({"2000"})
+	private int matches;
+
+	private BenchDatabase database;
+	private StatsDao statsDao;
+
+	@Setup
+	public void setup() throws Exception {
+		database = new BenchDatabase();
+		statsDao = database.getBean(StatsDao.class);
+
+		SyntheticMatches generator = new SyntheticMatches(500);
+		MatchDao matchDao = database.getBean(MatchDao.class);
+		RankDao rankDao = database.getBean(RankDao.class);
+
+		for (int i = 0; i < matches; i++) {
+			if (i % 2 == 0) {
+				matchDao.putMatch(generator.createMatch(i, "2v2", 4, MatchMap.RANKED_4, 10));
+			} else {
+				matchDao.putMatch(generator.createMatch(i, "3v3", 6, MatchMap.RANKED_6, 10));
+			}
+		}
+
+		for (int i = 0; i < 10; i++) {
+			RankPrimaryKey pk = new RankPrimaryKey();
+			pk.setSteamId64(generator.player(i * 50));
+			pk.setSeason((byte) 0);
+			pk.setMode(RankedMode.TWO_TEAMS);
+
+			PlayerRank rank = new PlayerRank();
+			rank.setPk(pk);
+			rank.setRank((byte) 1);
+			rank.setStars(RankedMode.TWO_TEAMS.getStars());
+
+			rankDao.save(rank);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	@Benchmark
+	public void recalculateAllWinRates() {
+		statsDao.recalculateAllWinRates();
+	}
+
+	@Benchmark
+	public void recalculateRankOneWinRates() {
+		statsDao.recalculateRankOneWinRates();
+	}
+}
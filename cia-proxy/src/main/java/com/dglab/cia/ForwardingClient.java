@@ -0,0 +1,139 @@
+package com.dglab.cia;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards requests to the storage service over a pool of kept-alive connections.
+ * Pool size is set with cia.proxy.connections.
+ *
+ * @author doc
+ */
+public class ForwardingClient {
+	private static final int CONNECTIONS = Integer.getInteger("cia.proxy.connections", 64);
+
+	// Connection-level headers are not forwarded, content length, host and date are set by the client and the server
+	private static final Set<String> SKIPPED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+	static {
+		SKIPPED_HEADERS.addAll(Arrays.asList(
+				"Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer", "Trailers",
+				"Transfer-Encoding", "Upgrade", "Content-Length", "Host", "Date"
+		));
+	}
+
+	private final String target;
+	private final CloseableHttpClient client;
+
+	public ForwardingClient(String target) {
+		this.target = target;
+
+		PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager(1, TimeUnit.MINUTES);
+		connections.setMaxTotal(CONNECTIONS);
+		connections.setDefaultMaxPerRoute(CONNECTIONS);
+		connections.setValidateAfterInactivity(2000);
+
+		client = HttpClients
+				.custom()
+				.setConnectionManager(connections)
+				.setDefaultRequestConfig(RequestConfig
+						.custom()
+						.setConnectTimeout(1000)
+						.setConnectionRequestTimeout(1000)
+						.setSocketTimeout(6000)
+						.build())
+				.disableContentCompression()
+				.disableCookieManagement()
+				.disableRedirectHandling()
+				.disableAutomaticRetries()
+				.build();
+	}
+
+	public static Map<String, String> forwardedHeaders(Request request) {
+		Map<String, String> headers = new HashMap<>();
+
+		for (String header : request.headers()) {
+			if (!SKIPPED_HEADERS.contains(header)) {
+				headers.put(header, request.headers(header));
+			}
+		}
+
+		return headers;
+	}
+
+	public CloseableHttpResponse get(String url, Map<String, String> headers) throws IOException {
+		return execute(new HttpGet(target + url), headers);
+	}
+
+	public CloseableHttpResponse post(String url, Map<String, String> headers, byte[] body) throws IOException {
+		HttpPost post = new HttpPost(target + url);
+		post.setEntity(new ByteArrayEntity(body));
+
+		return execute(post, headers);
+	}
+
+	private CloseableHttpResponse execute(HttpRequestBase request, Map<String, String> headers) throws IOException {
+		headers.forEach(request::setHeader);
+		return client.execute(request);
+	}
+
+	// The entity is copied as is to the servlet stream. Through spark a gzipped body would be gzipped a second time.
+	// Reading it to the end hands the connection back to the pool.
+	public static Object relay(CloseableHttpResponse answer, Response response) throws IOException {
+		try {
+			response.status(answer.getStatusLine().getStatusCode());
+
+			Set<String> relayed = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+			// The first value replaces a default set by spark, like the content type
+			for (Header header : answer.getAllHeaders()) {
+				if (SKIPPED_HEADERS.contains(header.getName())) {
+					continue;
+				}
+
+				if (relayed.add(header.getName())) {
+					response.raw().setHeader(header.getName(), header.getValue());
+				} else {
+					response.raw().addHeader(header.getName(), header.getValue());
+				}
+			}
+
+			HttpServletResponse raw = response.raw();
+			HttpEntity entity = answer.getEntity();
+
+			if (entity == null) {
+				raw.flushBuffer();
+				return "";
+			}
+
+			if (entity.getContentLength() >= 0) {
+				raw.setContentLengthLong(entity.getContentLength());
+			}
+
+			try (OutputStream out = raw.getOutputStream()) {
+				entity.writeTo(out);
+			}
+
+			return "";
+		} finally {
+			answer.close();
+		}
+	}
+}
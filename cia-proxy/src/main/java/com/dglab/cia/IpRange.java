@@ -6,8 +6,8 @@ import java.net.UnknownHostException;
  * @author doc
  */
 public class IpRange {
-	private final long network;
-	private final long netmask;
+	private final long first;
+	private final long last;
 
 	public IpRange(String networkPart, String cidrPart) throws UnknownHostException {
 		long netmask = 0;
@@ -18,35 +18,75 @@ public class IpRange {
 			}
 		}
 
-		this.network = netmask & toMask(networkPart);
-		this.netmask = netmask;
+		long network = parse(networkPart);
+
+		if (network < 0) {
+			throw new UnknownHostException(networkPart);
+		}
+
+		this.first = network & netmask;
+		this.last = first | (~netmask & 0xFFFFFFFFL);
+	}
+
+	private IpRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public static IpRange between(String firstIp, String lastIp) throws UnknownHostException {
+		long first = parse(firstIp);
+		long last = parse(lastIp);
+
+		if (first < 0 || last < 0) {
+			throw new UnknownHostException(firstIp + "-" + lastIp);
+		}
+
+		return new IpRange(first, last);
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
 	}
 
 	public boolean isInRange(String ip) {
-        return network == (toMask(ip) & netmask);
+		long address = parse(ip);
+		return address >= first && address <= last;
 	}
 
-	private long toMask(String ip) {
-        int ipInt = 0;
+	// Dotted IPv4 address as an unsigned 32 bit value, -1 for anything else like IPv6
+	public static long parse(String ip) {
+		long address = 0;
+		int octet = 0;
+		int digits = 0;
+		int octets = 0;
 
-        for (String value : ip.split("\\.")) {
-            ipInt = (ipInt << 8) + Integer.valueOf(value);
-        }
+		for (int i = 0; i < ip.length(); i++) {
+			char c = ip.charAt(i);
 
-        byte[] data = new byte[4];
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
 
-        data[3] = (byte) (ipInt & 0xFF);
-        data[2] = (byte) ((ipInt >> 8) & 0xFF);
-        data[1] = (byte) ((ipInt >> 16) & 0xFF);
-        data[0] = (byte) ((ipInt >> 24) & 0xFF);
+				if (++digits > 3 || octet > 255) {
+					return -1;
+				}
+			} else if (c == '.' && digits > 0 && octets < 3) {
+				address = (address << 8) | octet;
+				octet = 0;
+				digits = 0;
+				octets++;
+			} else {
+				return -1;
+			}
+		}
 
-		long accum = 0;
-		int idx = 3;
-		for (int shiftBy = 0; shiftBy < 32; shiftBy += 8) {
-			accum |= ((long) (data[idx] & 0xff)) << shiftBy;
-			idx--;
+		if (digits == 0 || octets != 3) {
+			return -1;
 		}
-		return accum;
+
+		return (address << 8) | octet;
 	}
 }
-
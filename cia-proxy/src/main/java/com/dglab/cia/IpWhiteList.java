@@ -0,0 +1,62 @@
+package com.dglab.cia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable white-list of IPv4 ranges, merged into sorted disjoint intervals and looked up by binary search.
+ * Safe to share between threads without locking, a refreshed list replaces the old one as a whole.
+ *
+ * @author doc
+ */
+public class IpWhiteList {
+	private final long[] firsts;
+	private final long[] lasts;
+
+	public IpWhiteList(Collection<IpRange> ranges) {
+		List<IpRange> sorted = new ArrayList<>(ranges);
+		sorted.sort(Comparator.comparingLong(IpRange::getFirst));
+
+		long[] firsts = new long[sorted.size()];
+		long[] lasts = new long[sorted.size()];
+		int size = 0;
+
+		for (IpRange range : sorted) {
+			// Overlapping and adjacent ranges become one interval
+			if (size > 0 && range.getFirst() <= lasts[size - 1] + 1) {
+				lasts[size - 1] = Math.max(lasts[size - 1], range.getLast());
+			} else {
+				firsts[size] = range.getFirst();
+				lasts[size] = range.getLast();
+				size++;
+			}
+		}
+
+		this.firsts = Arrays.copyOf(firsts, size);
+		this.lasts = Arrays.copyOf(lasts, size);
+	}
+
+	public boolean contains(String ip) {
+		long address = IpRange.parse(ip);
+
+		if (address < 0) {
+			return false;
+		}
+
+		int index = Arrays.binarySearch(firsts, address);
+
+		// Not found gives -(insertion point) - 1, the interval before the insertion point is the candidate
+		if (index < 0) {
+			index = -index - 2;
+		}
+
+		return index >= 0 && address <= lasts[index];
+	}
+
+	public int size() {
+		return firsts.length;
+	}
+}
@@ -1,10 +1,12 @@
 package com.dglab.cia;
 
+import java.io.IOException;
+
 /**
  * @author doc
  */
 public class Main {
-	public static void main(String ... args) {
+	public static void main(String ... args) throws IOException {
 		new ReverseProxy();
 	}
 }
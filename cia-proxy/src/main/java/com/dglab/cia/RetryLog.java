@@ -0,0 +1,247 @@
+package com.dglab.cia;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of undelivered requests, split into segment files.
+ * Every record is framed by its length and CRC, a record torn by a crash ends the segment when reading it back.
+ * Requests are written with fsync, completions are not, so a request may be delivered twice after a crash.
+ * A completion is appended to the segment holding its request, and a segment is deleted once every request in it is completed,
+ * so a request and its completion are always deleted together.
+ *
+ * @author doc
+ */
+public class RetryLog {
+	private static final Logger log = LoggerFactory.getLogger(RetryLog.class);
+	private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String DEAD_LETTERS = "dead-letters.log";
+
+	private static final byte ENQUEUED = 1;
+	private static final byte COMPLETED = 2;
+
+	private final Path directory;
+	private final Map<Path, Integer> liveRequests = new HashMap<>();
+	private final Map<Long, Path> segments = new HashMap<>();
+	private int segmentNumber;
+	private Path segmentPath;
+	private FileChannel segment;
+
+	public RetryLog(String directory) throws IOException {
+		this.directory = Paths.get(directory);
+		Files.createDirectories(this.directory);
+	}
+
+	// Reads back every request not yet completed ordered by id and compacts them into a fresh segment
+	public synchronized List<ServiceRequest> recover() throws IOException {
+		List<Path> oldSegments = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			stream.forEach(oldSegments::add);
+		}
+
+		Collections.sort(oldSegments);
+
+		Map<Long, ServiceRequest> pending = new TreeMap<>();
+
+		for (Path path : oldSegments) {
+			readSegment(path, pending);
+
+			String name = path.getFileName().toString();
+			int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			segmentNumber = Math.max(segmentNumber, number);
+		}
+
+		openSegment();
+
+		for (ServiceRequest request : pending.values()) {
+			writeRequest(request);
+		}
+
+		segment.force(false);
+
+		for (Path path : oldSegments) {
+			Files.delete(path);
+		}
+
+		return new ArrayList<>(pending.values());
+	}
+
+	private void readSegment(Path path, Map<Long, ServiceRequest> pending) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+
+		while (buffer.remaining() >= 8) {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+
+			if (length <= 0 || length > buffer.remaining()) {
+				log.warn("Retry log segment {} ends with a torn record", path);
+				return;
+			}
+
+			byte[] record = new byte[length];
+			buffer.get(record);
+
+			CRC32 crc = new CRC32();
+			crc.update(record);
+
+			if ((int) crc.getValue() != checksum) {
+				log.warn("Retry log segment {} has a corrupted record, skipping the rest", path);
+				return;
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			byte type = in.readByte();
+			long id = in.readLong();
+
+			if (type == ENQUEUED) {
+				pending.put(id, readRequest(id, in));
+			} else if (type == COMPLETED) {
+				pending.remove(id);
+			}
+		}
+	}
+
+	private static ServiceRequest readRequest(long id, DataInputStream in) throws IOException {
+		Instant created = Instant.ofEpochMilli(in.readLong());
+		String url = in.readUTF();
+
+		int headerCount = in.readInt();
+		Map<String, String> headers = new HashMap<>();
+
+		for (int i = 0; i < headerCount; i++) {
+			headers.put(in.readUTF(), in.readUTF());
+		}
+
+		byte[] body = new byte[in.readInt()];
+		in.readFully(body);
+
+		return new ServiceRequest(id, created, url, headers, body);
+	}
+
+	public synchronized void append(ServiceRequest request) throws IOException {
+		writeRequest(request);
+		segment.force(false);
+	}
+
+	private void writeRequest(ServiceRequest request) throws IOException {
+		write(encode(request));
+
+		segments.put(request.getId(), segmentPath);
+		liveRequests.merge(segmentPath, 1, Integer::sum);
+	}
+
+	// Requests that will never be delivered are kept in the same format outside of the segments, so they are not recovered
+	public synchronized void deadLetter(ServiceRequest request) throws IOException {
+		try (FileChannel deadLetters = FileChannel.open(
+				directory.resolve(DEAD_LETTERS), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+		)) {
+			write(deadLetters, encode(request));
+			deadLetters.force(false);
+		}
+
+		complete(request);
+	}
+
+	private static byte[] encode(ServiceRequest request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(request.getBody().length + 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(ENQUEUED);
+		out.writeLong(request.getId());
+		out.writeLong(request.getCreated().toEpochMilli());
+		out.writeUTF(request.getUrl());
+		out.writeInt(request.getHeaders().size());
+
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			out.writeUTF(header.getKey());
+			out.writeUTF(header.getValue());
+		}
+
+		out.writeInt(request.getBody().length);
+		out.write(request.getBody());
+
+		return bytes.toByteArray();
+	}
+
+	public synchronized void complete(ServiceRequest request) throws IOException {
+		Path path = segments.remove(request.getId());
+
+		if (path == null) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(COMPLETED);
+		out.writeLong(request.getId());
+
+		if (path.equals(segmentPath)) {
+			write(bytes.toByteArray());
+		} else {
+			try (FileChannel older = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				write(older, bytes.toByteArray());
+			}
+		}
+
+		if (liveRequests.merge(path, -1, Integer::sum) == 0 && !path.equals(segmentPath)) {
+			liveRequests.remove(path);
+			Files.delete(path);
+		}
+	}
+
+	private void write(byte[] record) throws IOException {
+		if (segment.size() >= SEGMENT_SIZE) {
+			rotate();
+		}
+
+		write(segment, record);
+	}
+
+	private static void write(FileChannel channel, byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		ByteBuffer buffer = ByteBuffer.allocate(record.length + 8);
+		buffer.putInt(record.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(record);
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void rotate() throws IOException {
+		Path previous = segmentPath;
+		segment.close();
+		openSegment();
+
+		if (liveRequests.getOrDefault(previous, 0) == 0) {
+			liveRequests.remove(previous);
+			Files.delete(previous);
+		}
+	}
+
+	private void openSegment() throws IOException {
+		segmentNumber++;
+		segmentPath = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+		segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+}
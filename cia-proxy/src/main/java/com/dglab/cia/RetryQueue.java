@@ -0,0 +1,208 @@
+package com.dglab.cia;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers POSTs to the storage service. A request that fails is written to the {@link RetryLog}
+ * and replayed by a pool of workers with exponential backoff, surviving a restart of the proxy.
+ * Requests of the same match are delivered in the order they came in, while one is waiting the later ones queue behind it.
+ * A request storage rejects with a 4xx, or one that runs out of tries, is moved to the dead letters of the log.
+ * Set with cia.proxy.retryLog (directory), cia.proxy.retryThreads and cia.proxy.retryTries.
+ *
+ * @author doc
+ */
+public class RetryQueue {
+	private static final Logger log = LoggerFactory.getLogger(RetryQueue.class);
+	private static final int THREADS = Integer.getInteger("cia.proxy.retryThreads", 4);
+	private static final int TRIES = Integer.getInteger("cia.proxy.retryTries", 20);
+	private static final long FIRST_DELAY = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+	private final ForwardingClient client;
+	private final RetryLog retryLog;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	// Waiting requests per ordering key, an empty queue means the first attempt of a request is in flight
+	private final Map<String, Deque<ServiceRequest>> pending = new HashMap<>();
+
+	private final AtomicInteger threadNumber = new AtomicInteger();
+	private final ScheduledExecutorService workers = Executors.newScheduledThreadPool(THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "retry-worker-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public RetryQueue(ForwardingClient client) throws IOException {
+		this.client = client;
+		this.retryLog = new RetryLog(System.getProperty("cia.proxy.retryLog", "retry-log"));
+
+		List<ServiceRequest> recovered = retryLog.recover();
+
+		synchronized (this) {
+			for (ServiceRequest request : recovered) {
+				sequence.set(Math.max(sequence.get(), request.getId()));
+				pending.computeIfAbsent(request.getOrderingKey(), key -> new ArrayDeque<>()).add(request);
+			}
+
+			pending.values().forEach(queue -> schedule(queue.peek(), 0));
+		}
+
+		if (!recovered.isEmpty()) {
+			log.info("Recovered {} undelivered requests from the retry log", recovered.size());
+		}
+	}
+
+	// Storage's answer, or null if the request is in the retry log and will be delivered in the background.
+	// Throws if it could neither be delivered nor written to the log, the client has to send it again
+	public CloseableHttpResponse send(String url, Map<String, String> headers, byte[] body) throws IOException {
+		ServiceRequest request = new ServiceRequest(sequence.incrementAndGet(), Instant.now(), url, headers, body);
+		String key = request.getOrderingKey();
+
+		synchronized (this) {
+			Deque<ServiceRequest> queue = pending.get(key);
+
+			if (queue != null) {
+				append(request);
+				log.info("Queued request to {} behind {} others", url, queue.size());
+				queue.add(request);
+				return null;
+			}
+
+			pending.put(key, new ArrayDeque<>());
+		}
+
+		try {
+			CloseableHttpResponse answer = request.send(client);
+			next(key);
+
+			return answer;
+		} catch (IOException e) {
+			log.info("Request to {} failed, retrying in background: {}", url, e.getMessage());
+
+			synchronized (this) {
+				try {
+					append(request);
+				} catch (IOException logError) {
+					next(key);
+					throw logError;
+				}
+
+				pending.get(key).addFirst(request);
+				schedule(request, backoff(request.getTries()));
+			}
+
+			return null;
+		}
+	}
+
+	private void replay(ServiceRequest request) {
+		boolean delivered = false;
+
+		try {
+			CloseableHttpResponse answer = request.send(client);
+			int status = answer.getStatusLine().getStatusCode();
+			answer.close();
+
+			if (ServiceRequest.isRejected(status)) {
+				log.warn("Storage rejected the retried request to {} with {}", request.getUrl(), status);
+				rejected.incrementAndGet();
+			} else {
+				log.info("Retried request to {} succeeded", request.getUrl());
+				retried.incrementAndGet();
+				delivered = true;
+			}
+		} catch (IOException e) {
+			if (request.getTries() < TRIES) {
+				long delay = backoff(request.getTries());
+				log.info("Retry of {} failed, next in {} s: {}", request.getUrl(), delay / 1000, e.getMessage());
+				schedule(request, delay);
+				return;
+			}
+
+			log.warn("Not retrying anymore: {}", request.getUrl());
+			abandoned.incrementAndGet();
+		}
+
+		try {
+			if (delivered) {
+				retryLog.complete(request);
+			} else {
+				retryLog.deadLetter(request);
+			}
+		} catch (IOException e) {
+			log.error("Could not write to the retry log: {}", e.toString());
+		}
+
+		synchronized (this) {
+			pending.get(request.getOrderingKey()).poll();
+		}
+
+		next(request.getOrderingKey());
+	}
+
+	// Starts the next request of this key, or forgets the key once nothing is waiting
+	private synchronized void next(String key) {
+		Deque<ServiceRequest> queue = pending.get(key);
+
+		if (queue.isEmpty()) {
+			pending.remove(key);
+		} else {
+			schedule(queue.peek(), 0);
+		}
+	}
+
+	private void schedule(ServiceRequest request, long delay) {
+		workers.schedule(() -> replay(request), delay, TimeUnit.MILLISECONDS);
+	}
+
+	// Half of the delay is random so matches failed at the same moment are not retried all at once
+	private static long backoff(int tries) {
+		long delay = Math.min(MAX_DELAY, FIRST_DELAY << Math.min(tries - 1, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private void append(ServiceRequest request) throws IOException {
+		try {
+			retryLog.append(request);
+		} catch (IOException e) {
+			log.error("Could not write to the retry log, request to {} is refused: {}", request.getUrl(), e.toString());
+			throw e;
+		}
+	}
+
+	public synchronized Map<String, Object> getStats() {
+		Instant oldest = pending
+				.values()
+				.stream()
+				.flatMap(Collection::stream)
+				.map(ServiceRequest::getCreated)
+				.min(Comparator.naturalOrder())
+				.orElse(null);
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("depth", pending.values().stream().mapToInt(Deque::size).sum());
+		stats.put("matches", pending.values().stream().filter(queue -> !queue.isEmpty()).count());
+		stats.put("oldestAgeSeconds", oldest != null ? Duration.between(oldest, Instant.now()).getSeconds() : 0);
+		stats.put("retried", retried.get());
+		stats.put("abandoned", abandoned.get());
+		stats.put("rejected", rejected.get());
+
+		return stats;
+	}
+}
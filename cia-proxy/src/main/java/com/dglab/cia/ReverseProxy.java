@@ -1,30 +1,28 @@
 package com.dglab.cia;
 
+import com.dglab.cia.json.util.ObjectMapperFactory;
+import com.dglab.cia.util.ServerThreads;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
-import spark.utils.IOUtils;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.StringReader;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static spark.Spark.*;
 
@@ -38,8 +36,11 @@ public class ReverseProxy {
 	private static final String IP_POOL = "https://raw.githubusercontent.com/SteamDatabase/GameTracking/master/dota/game/dota/pak01_dir/scripts/regions.txt";
 
 	private ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor();
-	private Collection<IpRange> whiteList = new HashSet<>();
-	private Lock lock = new ReentrantLock();
+	private ForwardingClient forwardingClient = new ForwardingClient(PROXY_TARGET);
+	private ObjectMapper mapper = ObjectMapperFactory.createObjectMapper();
+	private RetryQueue retryQueue;
+	private final IpRange localhost;
+	private volatile IpWhiteList whiteList;
 
 	private void downloadAndParseWhiteList() {
 		try {
@@ -74,107 +75,89 @@ public class ReverseProxy {
                     matcher = ipRangePattern.matcher(line);
 
                     while (matcher.find()) {
-                        String startIp[] = matcher.group(1).split("\\.");
-                        String endIp[] = matcher.group(2).split("\\.");
+                        log.info("Found IP range of {}-{}", matcher.group(1), matcher.group(2));
+                        IpRange range = IpRange.between(matcher.group(1), matcher.group(2));
 
-                        log.info("Found IP range of {}-{}", startIp, endIp);
-
-                        int startNumber = Integer.valueOf(startIp[startIp.length - 1]);
-                        int endNumber = Integer.valueOf(endIp[endIp.length - 1]);
-
-                        if (startNumber > endNumber) {
-                            continue;
-                        }
-
-                        for (; startNumber <= endNumber; startNumber++) {
-                            String newIp = StringUtils.join(Arrays.copyOf(startIp, 3), ".") + "." + startNumber;
-                            result.add(new IpRange(newIp, null));
-                            log.info("Added {}", newIp);
+                        if (range.getFirst() <= range.getLast()) {
+                            result.add(range);
                         }
                     }
 				}
 			}
 
-			lock.lock();
-
-			try {
-				whiteList.clear();
-				whiteList.addAll(result);
-				whiteList.add(new IpRange("127.0.0.1", null));
-			} finally {
-				lock.unlock();
-			}
+			result.add(localhost);
+			whiteList = new IpWhiteList(result);
 
-            log.info("IP white-list updated successfully, size: {}", whiteList.size());
+            log.info("IP white-list updated successfully, {} ranges", whiteList.size());
 		} catch (Exception e) {
 			log.warn("Could not obtain IP white-list:" + e.getMessage());
 		}
 	}
 
+	private void checkWhiteList(Request request) {
+		if (!whiteList.contains(request.ip())) {
+			log.info("Access rejected to " + request.ip());
+			halt(403);
+		}
+	}
+
 	private String getRequestURL(Request request){
 		String queryString = (request.queryString() != null ? "?" + request.queryString() : "");
 
 		return request.uri() + queryString;
 	}
 
-	public ReverseProxy() {
+	public ReverseProxy() throws IOException {
 		port(3637);
-		threadPool(16);
+		ServerThreads.configure("proxy", 64);
+
+		retryQueue = new RetryQueue(forwardingClient);
+
+		// Local requests are accepted even before the white-list is downloaded
+		localhost = new IpRange("127.0.0.1", null);
+		whiteList = new IpWhiteList(Collections.singleton(localhost));
 
 		Unirest.setTimeouts(1000, 6000);
 		Unirest.clearDefaultHeaders();
 
 		service.scheduleAtFixedRate(this::downloadAndParseWhiteList, 0, 1, TimeUnit.DAYS);
 
-		get("/*", ((request, response) -> {
-			String url = getRequestURL(request);
-			Map<String, String> headers = request.headers().stream().collect(Collectors.toMap(h -> h, request::headers));
-
-			HttpResponse<InputStream> answer = Unirest
-					.get(PROXY_TARGET + url)
-					.headers(headers)
-					.asBinary();
+		get("/proxy/retries", (request, response) -> {
+			checkWhiteList(request);
 
-			if (answer == null) {
-				return null;
-			}
-
-			response.status(answer.getStatus());
-			answer.getHeaders().forEach((header, values) -> {
-				response.header(header, StringUtils.join(values, ";"));
-			});
+			response.type("application/json");
+			return mapper.writeValueAsString(retryQueue.getStats());
+		});
 
-			return IOUtils.toByteArray(answer.getBody());
+		// The proxy keeps no copies, If-None-Match goes to storage and its 304 and ETag come back as they are
+		get("/*", ((request, response) -> {
+			return ForwardingClient.relay(
+					forwardingClient.get(getRequestURL(request), ForwardingClient.forwardedHeaders(request)),
+					response
+			);
 		}));
 
 		post("/*", (request, response) -> {
-            lock.lock();
+			checkWhiteList(request);
+
+			CloseableHttpResponse answer;
 
 			try {
-				String ip = request.ip();
-				
-				if (whiteList.stream().noneMatch(range -> range.isInRange(ip))) {
-					log.info("Access rejected to " + ip);
-					halt(403);
-				}
-			} finally {
-				lock.unlock();
+				answer = retryQueue.send(
+						getRequestURL(request), ForwardingClient.forwardedHeaders(request), request.bodyAsBytes()
+				);
+			} catch (IOException e) {
+				halt(503);
+				return "";
 			}
 
-            String url = getRequestURL(request);
-			Map<String, String> headers = request.headers().stream().collect(Collectors.toMap(h -> h, request::headers));
-			headers.remove("Content-Length");
-
-			ServiceRequest serviceRequest = new ServiceRequest(url, headers, request.bodyAsBytes());
-
-			HttpResponse<InputStream> answer = serviceRequest.retry();
-
+			// Accepted, it is delivered from the retry log
 			if (answer == null) {
-				halt(503);
+				response.status(202);
 				return "";
 			}
 
-			return IOUtils.toByteArray(answer.getRawBody());
+			return ForwardingClient.relay(answer, response);
 		});
 	}
 }
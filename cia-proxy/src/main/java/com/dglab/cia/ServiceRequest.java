@@ -1,60 +1,88 @@
 package com.dglab.cia;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import spark.utils.IOUtils;
-
-import java.io.InputStream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.time.Instant;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
+ * A POST to the storage service, kept in the {@link RetryLog} until it is delivered
+ *
  * @author doc
  */
 public class ServiceRequest {
-	private static ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor();
-    private static final Logger log = LoggerFactory.getLogger(ServiceRequest.class);
-
-	private int triesLeft = 20;
-	private Map<String, String> headers;
-	private byte[] body;
-	private String url;
+	private final long id;
+	private final Instant created;
+	private final String url;
+	private final Map<String, String> headers;
+	private final byte[] body;
+	private int tries;
 
-	public ServiceRequest(String url, Map<String, String> headers, byte[] body) {
+	public ServiceRequest(long id, Instant created, String url, Map<String, String> headers, byte[] body) {
+		this.id = id;
+		this.created = created;
 		this.url = url;
 		this.headers = headers;
 		this.body = body;
 	}
 
-	public HttpResponse<InputStream> retry() {
-		try {
-			HttpResponse<InputStream> answer = Unirest
-					.post(ReverseProxy.PROXY_TARGET + url)
-					.headers(headers)
-					.body(body)
-					.asBinary();
+	public long getId() {
+		return id;
+	}
+
+	public Instant getCreated() {
+		return created;
+	}
 
-			if (answer.getStatus() != 200) {
-				throw new UnirestException("Service error: " + IOUtils.toString(answer.getBody()));
-			}
+	public String getUrl() {
+		return url;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public int getTries() {
+		return tries;
+	}
+
+	// Requests of one match share the key, like /match/42, /match/42/1 and /winner/42
+	public String getOrderingKey() {
+		String[] path = url.split("[/?]");
+
+		if (path.length > 2 && !path[2].isEmpty() && path[2].chars().allMatch(Character::isDigit)) {
+			return path[2];
+		}
+
+		return url;
+	}
+
+	// Storage refused the request itself, sending it again would not change the answer
+	public static boolean isRejected(int status) {
+		return status >= 400 && status < 500;
+	}
+
+	// A 2xx or 4xx answer is final, anything else is a failure worth retrying
+	public CloseableHttpResponse send(ForwardingClient client) throws IOException {
+		tries++;
 
-			return answer;
-		} catch (Exception e) {
-			log.info(e.getMessage());
+		CloseableHttpResponse answer = client.post(url, headers, body);
+		int status = answer.getStatusLine().getStatusCode();
 
-			if (--triesLeft > 0) {
-                log.info("Retrying request to {}", url);
-				service.schedule(this::retry, 90, TimeUnit.SECONDS);
-			} else {
-				log.info("Not retrying anymore: {}", url);
+		if ((status < 200 || status >= 300) && !isRejected(status)) {
+			try {
+				throw new IOException("Service error " + status + ": " + EntityUtils.toString(answer.getEntity()));
+			} finally {
+				answer.close();
 			}
 		}
 
-		return null;
+		return answer;
 	}
 }
@@ -0,0 +1,60 @@
+package com.dglab.cia.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Strong entity tags derived from response content, so identical data keeps its tag across reloads and restarts
+ *
+ * @author doc
+ */
+public class ETags {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public static String of(byte[] data) {
+		byte[] digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		char[] tag = new char[digest.length * 2 + 2];
+		tag[0] = '"';
+		tag[tag.length - 1] = '"';
+
+		for (int i = 0; i < digest.length; i++) {
+			tag[i * 2 + 1] = HEX[(digest[i] >> 4) & 0xF];
+			tag[i * 2 + 2] = HEX[digest[i] & 0xF];
+		}
+
+		return new String(tag);
+	}
+
+	// A gzipped body is a different representation and gets its own tag
+	public static String gzipped(String etag) {
+		return etag.substring(0, etag.length() - 1) + "-gz\"";
+	}
+
+	// If-None-Match uses weak comparison and may list several tags
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null) {
+			return false;
+		}
+
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
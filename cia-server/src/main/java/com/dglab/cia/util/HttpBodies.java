@@ -0,0 +1,71 @@
+package com.dglab.cia.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response bodies serialized up front, written raw with their length and served gzipped where the client takes it.
+ * The status and content type are set by the caller, nothing touches a committed response afterwards.
+ *
+ * @author doc
+ */
+public class HttpBodies {
+	// The gzipped copy of the data, or null if it is not smaller
+	public static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(data);
+		}
+
+		return bytes.size() < data.length ? bytes.toByteArray() : null;
+	}
+
+	public static boolean acceptsGzip(HttpServletRequest request) {
+		String encodings = request.getHeader("Accept-Encoding");
+		return encodings != null && encodings.contains("gzip");
+	}
+
+	// Answers 304 when the tag of the chosen encoding matches If-None-Match, the tag and the gzipped copy may be null
+	public static void write(
+			HttpServletRequest request,
+			HttpServletResponse response,
+			byte[] body,
+			byte[] gzipped,
+			String eTag
+	) throws IOException {
+		boolean encoded = gzipped != null && acceptsGzip(request);
+
+		if (gzipped != null) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+
+		if (encoded && eTag != null) {
+			eTag = ETags.gzipped(eTag);
+		}
+
+		if (eTag != null) {
+			response.setHeader("ETag", eTag);
+		}
+
+		if (ETags.matches(request.getHeader("If-None-Match"), eTag)) {
+			response.setStatus(304);
+			return;
+		}
+
+		if (encoded) {
+			response.setHeader("Content-Encoding", "gzip");
+			body = gzipped;
+		}
+
+		response.setContentLength(body.length);
+
+		try (OutputStream out = response.getOutputStream()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.dglab.cia.util;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+import static spark.Spark.halt;
+
+/**
+ * Sets up the Spark worker pool from system properties, must be called before any route is defined.
+ * For an application named "storage" these are:
+ * cia.storage.threads, cia.storage.minThreads, cia.storage.idleTimeout (ms), cia.storage.queue
+ * and cia.storage.virtualThreads to run every request on its own virtual thread where the runtime supports it.
+ * A request is checked when it is dispatched, before any route runs, and answered with 503 when the server is saturated:
+ * with a worker pool when more than the queue limit of jobs wait for a worker, with virtual threads when more than
+ * threads + queue requests are in flight. Jetty's own job queue stays unbounded, its selectors and acceptors share it.
+ *
+ * @author doc
+ */
+public class ServerThreads {
+	private static final Logger log = LoggerFactory.getLogger(ServerThreads.class);
+	private static final String ADMITTED = ServerThreads.class.getName() + ".admitted";
+
+	private static class VirtualThreadPool implements ThreadPool {
+		private final ExecutorService executor;
+
+		private VirtualThreadPool(ExecutorService executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			executor.execute(command);
+		}
+
+		@Override
+		public void join() throws InterruptedException {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				// Jetty only joins on shutdown
+			}
+		}
+
+		@Override
+		public int getThreads() {
+			return 0;
+		}
+
+		@Override
+		public int getIdleThreads() {
+			return 0;
+		}
+
+		@Override
+		public boolean isLowOnThreads() {
+			return false;
+		}
+	}
+
+	public static void configure(String name, int defaultThreads) {
+		String prefix = "cia." + name + ".";
+		int threads = Integer.getInteger(prefix + "threads", defaultThreads);
+		int minThreads = Integer.getInteger(prefix + "minThreads", Math.min(4, threads));
+		int idleTimeout = Integer.getInteger(prefix + "idleTimeout", 60000);
+		int queue = Integer.getInteger(prefix + "queue", 256);
+
+		ExecutorService virtualThreads = null;
+
+		if (Boolean.getBoolean(prefix + "virtualThreads")) {
+			virtualThreads = createVirtualThreadExecutor();
+		}
+
+		if (virtualThreads != null) {
+			// Requests start right away, so the limit on requests in flight is checked as they arrive
+			AtomicInteger inFlight = new AtomicInteger();
+			int limit = threads + queue;
+
+			EmbeddedServers.add(
+					EmbeddedServers.Identifiers.JETTY,
+					new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool(virtualThreads))
+			);
+
+			before((request, response) -> {
+				inFlight.incrementAndGet();
+				request.attribute(ADMITTED, true);
+
+				if (inFlight.get() > limit) {
+					halt(503);
+				}
+			});
+
+			afterAfter((request, response) -> {
+				if (request.attribute(ADMITTED) != null) {
+					inFlight.decrementAndGet();
+				}
+			});
+
+			log.info("{}: virtual thread per request, at most {} requests in flight", name, limit);
+		} else {
+			// A worker that picks up a request while too many jobs wait behind it answers 503 right away,
+			// which drains the backlog instead of serving requests their clients have likely given up on
+			QueuedThreadPool pool = new QueuedThreadPool(threads, minThreads, idleTimeout);
+
+			EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory().withThreadPool(pool));
+
+			before((request, response) -> {
+				if (pool.getQueueSize() > queue) {
+					halt(503);
+				}
+			});
+
+			log.info("{}: {}-{} threads, idle timeout {} ms, queue {}", name, minThreads, threads, idleTimeout, queue);
+		}
+	}
+
+	// Looked up reflectively, the build targets a runtime without virtual threads
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.warn("Virtual threads are not supported by this runtime, using a platform thread pool");
+			return null;
+		}
+	}
+}
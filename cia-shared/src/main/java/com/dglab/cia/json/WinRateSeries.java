@@ -0,0 +1,39 @@
+package com.dglab.cia.json;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Win-rates as chart series, every point is [hero, winRate, games]
+ *
+ * @author doc
+ */
+public class WinRateSeries {
+    private List<Object[]> general;
+    private List<Object[]> rankOne;
+
+    public static List<Object[]> toSeries(List<HeroWinRateAndGames> winRates) {
+        return winRates
+                .stream()
+                .map(winRate -> new Object[] {
+                        winRate.getHero(), Math.round(winRate.getWinRate() * 10000) / 10000.0, winRate.getGames()
+                })
+                .collect(Collectors.toList());
+    }
+
+    public List<Object[]> getGeneral() {
+        return general;
+    }
+
+    public void setGeneral(List<Object[]> general) {
+        this.general = general;
+    }
+
+    public List<Object[]> getRankOne() {
+        return rankOne;
+    }
+
+    public void setRankOne(List<Object[]> rankOne) {
+        this.rankOne = rankOne;
+    }
+}
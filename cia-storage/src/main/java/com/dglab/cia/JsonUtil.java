@@ -1,32 +1,88 @@
 package com.dglab.cia;
 
+import com.dglab.cia.util.HttpBodies;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.springframework.beans.factory.annotation.Autowired;
-import spark.ResponseTransformer;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 import spark.Spark;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Responses are serialized to bytes and written straight to the servlet output stream instead of going through a String,
+ * with one ObjectWriter per response class and one ObjectReader per request class so their root (de)serializers are looked up once.
+ * Jackson takes its output buffers from its per-thread recycler, the server threads are pooled.
+ *
  * @author doc
  */
 public class JsonUtil {
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	// Below this a gzipped body is hardly smaller and costs a deflater
+	private static final int GZIP_MIN_BYTES = 1024;
+
 	@Autowired
 	private ObjectMapper mapper;
 
-	public String toJson(Object object) {
+	private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+	private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+	private ObjectWriter writerFor(Object object) {
+		return writers.computeIfAbsent(object.getClass(), mapper::writerFor);
+	}
+
+	public <T> T fromJson(String json, Class<T> type) throws IOException {
+		return readers.computeIfAbsent(type, mapper::readerFor).readValue(json);
+	}
+
+	public byte[] toJsonBytes(Object object) {
+		Object value = object != null ? object : Collections.emptyMap();
+
 		try {
-			return mapper.writeValueAsString(object != null ? object : new HashMap());
+			return writerFor(value).writeValueAsBytes(value);
 		} catch (JsonProcessingException e) {
 			e.printStackTrace();
 			Spark.halt(500);
 		}
 
-		return "";
+		return new byte[0];
+	}
+
+	public static byte[] gzip(byte[] body) throws IOException {
+		return body.length < GZIP_MIN_BYTES ? null : HttpBodies.gzip(body);
 	}
 
-	public ResponseTransformer json() {
-		return this::toJson;
+	// The route's result is written raw, spark does not touch a committed response
+	public Route streamed(Route route) {
+		return (request, response) -> stream(route.handle(request, response), request, response);
+	}
+
+	// Serialized before anything is sent, so a failing serializer still ends in a 500
+	public Object stream(Object object, Request request, Response response) throws IOException {
+		byte[] body = toJsonBytes(object);
+		byte[] gzipped = null;
+
+		if (HttpBodies.acceptsGzip(request.raw())) {
+			gzipped = gzip(body);
+		} else if (body.length >= GZIP_MIN_BYTES) {
+			response.header("Vary", "Accept-Encoding");
+		}
+
+		return write(body, gzipped, null, request, response);
+	}
+
+	// Already serialized bodies, the gzipped copy is null where it was not worth keeping and the tag where there is none
+	public Object write(byte[] body, byte[] gzipped, String eTag, Request request, Response response) throws IOException {
+		response.type(CONTENT_TYPE);
+		HttpBodies.write(request.raw(), response.raw(), body, gzipped, eTag);
+
+		return "";
 	}
 }
@@ -86,6 +86,9 @@ public class PersistenceConfig {
 			{
 				setProperty("hibernate.hbm2ddl.auto", "update");
 				setProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQL94Dialect");
+				setProperty("hibernate.jdbc.batch_size", "50");
+				setProperty("hibernate.order_inserts", "true");
+				setProperty("hibernate.order_updates", "true");
 			}
 		};
 	}
@@ -1,16 +1,27 @@
 package com.dglab.cia;
 
 import com.dglab.cia.json.*;
+import com.dglab.cia.persistence.MatchResultProcessor;
 import com.dglab.cia.persistence.MatchService;
 import com.dglab.cia.persistence.RankService;
+import com.dglab.cia.persistence.ResponseCache;
 import com.dglab.cia.persistence.StatsDao;
 import com.dglab.cia.persistence.StatsService;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.dglab.cia.util.ServerThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.impl.SimpleLogger;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import spark.Request;
+import spark.Route;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 
 import static spark.Spark.*;
@@ -27,46 +38,51 @@ public class StorageApplication {
     }
 
     private static Logger log = LoggerFactory.getLogger(StorageApplication.class);
+    private static final int MATCH_COUNT_DAYS = 30;
+    private static final int RESULT_POLL_SECONDS = 5;
 
     private AnnotationConfigApplicationContext context;
     private StatsService statsService;
     private MatchService matchService;
     private RankService rankService;
-	private ObjectMapper mapper;
+	private MatchResultProcessor matchResultProcessor;
+	private ResponseCache responseCache;
 	private JsonUtil jsonUtil;
 
 	public StorageApplication() {
 		port(5141);
-		threadPool(4);
+		ServerThreads.configure("storage", 16);
 
 		context = new AnnotationConfigApplicationContext();
 		context.getEnvironment().setActiveProfiles("readWrite");
 		context.register(PersistenceConfig.class);
 		context.refresh();
+		context.registerShutdownHook();
 
         statsService = context.getBean(StatsService.class);
 		matchService = context.getBean(MatchService.class);
 		rankService = context.getBean(RankService.class);
-		mapper = context.getBean(ObjectMapper.class);
+		matchResultProcessor = context.getBean(MatchResultProcessor.class);
+		responseCache = context.getBean(ResponseCache.class);
 		jsonUtil = context.getBean(JsonUtil.class);
 
-		get("/match/:id", (request, response) -> {
+		get("/match/:id", cached(ResponseCache.Type.MATCH, request -> requestLong(request, "id"), (request, response) -> {
 			return matchService.getMatchDetails(requestLong(request, "id"));
-		}, jsonUtil.json());
+		}));
 
-        get("/matches/:id", (request, response) -> {
+        get("/matches/:id", cached(ResponseCache.Type.PLAYER_MATCHES, request -> requestLong(request, "id"), (request, response) -> {
             return matchService.getRecentPlayerMatches(requestLong(request, "id"));
-        }, jsonUtil.json());
+        }));
 
-        get("/ranks/player/:id", (request, response) -> {
+        get("/ranks/player/:id", cached(ResponseCache.Type.PLAYER_RANKS, request -> requestLong(request, "id"), (request, response) -> {
 			return rankService.getPlayerRanks(requestLong(request, "id"));
-		}, jsonUtil.json());
+		}));
 
-		get("/ranks/history/:id", (request, response) -> {
+		get("/ranks/history/:id", cached(ResponseCache.Type.RANK_HISTORY, request -> requestLong(request, "id"), (request, response) -> {
 			return rankService.getPlayerRankHistory(requestLong(request, "id"));
-		}, jsonUtil.json());
+		}));
 
-		get("/ranks/top/:mode", (request, response) -> {
+		get("/ranks/top/:mode", cached(ResponseCache.Type.MODE_TOP_PLAYERS, request -> paramToMode(request, "mode"), (request, response) -> {
 			RankedMode mode = paramToMode(request, "mode");
 
 			if (mode != null) {
@@ -74,25 +90,37 @@ public class StorageApplication {
 			}
 
 			return "";
-		}, jsonUtil.json());
+		}));
 
-		get("/ranks/top", (request, response) -> {
+		get("/ranks/top", cached(ResponseCache.Type.TOP_PLAYERS, request -> null, (request, response) -> {
 			return rankService.getTopPlayers();
-		}, jsonUtil.json());
+		}));
 
-        get("/ranks/info", (request, response) -> {
+        get("/ranks/info", cached(ResponseCache.Type.RANKED_INFO, request -> null, (request, response) -> {
             return rankService.getRankedInfo();
-        }, jsonUtil.json());
+        }));
 
-        get("/", (request, response) -> {
+        get("/", cached(ResponseCache.Type.WIN_RATES, request -> null, (request, response) -> {
             AllStats stats = new AllStats();
             stats.setGeneralWinrates(statsService.getGeneralWinRates());
             stats.setRankOneWinrates(statsService.getRankOneWinRates());
 
             return stats;
-        }, jsonUtil.json());
+        }));
+
+        // Chart payload for the home page, kept serialized until the win-rates change
+        get("/stats/winrates/series", cached(ResponseCache.Type.WIN_RATE_SERIES, request -> null, (request, response) -> {
+            return statsService.getWinRateSeries();
+        }));
+
+        get("/stats/counts", jsonUtil.streamed((request, response) -> {
+            LocalDate to = requestDate(request, "to", LocalDate.now(ZoneOffset.UTC));
+            LocalDate from = requestDate(request, "from", to.minusDays(MATCH_COUNT_DAYS - 1));
+
+            return statsService.getMatchCounts(from, to);
+        }));
 
-		post("/match/:id", (request, response) -> {
+		post("/match/:id", jsonUtil.streamed((request, response) -> {
 			long matchId = requestLong(request, "id");
 			MatchInfo matchInfo = requestObject(request, MatchInfo.class);
 			matchInfo.setMatchId(matchId);
@@ -105,12 +133,8 @@ public class StorageApplication {
 
 			matchService.putMatch(matchInfo);
 
-			RanksAndAchievements achievements = new RanksAndAchievements();
-            achievements.setRanks(rankService.getMatchRanks(matchId));
-            achievements.setAchievements(rankService.getRankedAchievements(matchId));
-
-			return achievements;
-		}, jsonUtil.json());
+			return rankService.getMatchRanksAndAchievements(matchId);
+		}));
 
 		post("/match/:id/:round", (request, response) -> {
 			long matchId = requestLong(request, "id");
@@ -133,12 +157,27 @@ public class StorageApplication {
 
 			log.info("Winner set {}", matchId);
 
-			if (matchService.putWinner(matchWinner)) {
-				return rankService.processMatchResults(matchId);
-			}
+			matchResultProcessor.submit(matchWinner);
+			response.status(202);
 
 			return "";
-		}, jsonUtil.json());
+		});
+
+		// Long-poll, answers 202 if the results are still being processed
+		get("/winner/:id/result", jsonUtil.streamed((request, response) -> {
+			CompletableFuture<RankUpdateDetails> result = matchResultProcessor.getResult(requestLong(request, "id"));
+
+			if (result == null) {
+				halt(404);
+			}
+
+			try {
+				return result.get(RESULT_POLL_SECONDS, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				response.status(202);
+				return null;
+			}
+		}));
 
 		before("/admin/*", (request, response) -> {
 			if (!"127.0.0.1".equals(request.ip())) {
@@ -182,6 +221,10 @@ public class StorageApplication {
                 case "rankOneWinRates":
                     statsService.runRankOneWinRatesRecalculation();
                     break;
+
+                case "matchCounts":
+                    statsService.rebuildMatchCounts();
+                    break;
             }
 
             return "";
@@ -193,6 +236,17 @@ public class StorageApplication {
 		});
 	}
 
+	// Serves the route's JSON from the response cache, the key function picks the id the cache is invalidated by
+	private Route cached(ResponseCache.Type type, Function<Request, Object> id, Route route) {
+		return (request, response) -> {
+			ResponseCache.Entry entry = responseCache.get(
+					type, id.apply(request), () -> jsonUtil.toJsonBytes(route.handle(request, response))
+			);
+
+			return jsonUtil.write(entry.getBody(), entry.getGzipped(), entry.getETag(), request, response);
+		};
+	}
+
 	private RankedMode paramToMode(Request request, String paramName) {
 		String mode = request.params(paramName);
 
@@ -215,9 +269,25 @@ public class StorageApplication {
         return 0L;
     }
 
+    private LocalDate requestDate(Request request, String name, LocalDate defaultValue) {
+        String value = request.queryParams(name);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            halt(400);
+        }
+
+        return defaultValue;
+    }
+
 	private <T> T requestObject(Request request, Class<T> type) throws Exception {
 		String data = request.raw().getParameter("data");
-		return mapper.readValue(data, type);
+		return jsonUtil.fromJson(data, type);
 	}
 
 }
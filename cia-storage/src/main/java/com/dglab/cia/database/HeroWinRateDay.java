@@ -0,0 +1,46 @@
+package com.dglab.cia.database;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+/**
+ * Win and game counters of a hero for a single day, summed up into {@link HeroWinRate}
+ *
+ * @author doc
+ */
+@Entity
+@Table(name = "hero_win_rate_days")
+public class HeroWinRateDay {
+    private HeroWinRateDayKey pk;
+    private int wins;
+    private int games;
+
+    @EmbeddedId
+    public HeroWinRateDayKey getPk() {
+        return pk;
+    }
+
+    @Column(name = "wins", nullable = false)
+    public int getWins() {
+        return wins;
+    }
+
+    @Column(name = "games", nullable = false)
+    public int getGames() {
+        return games;
+    }
+
+    public void setPk(HeroWinRateDayKey pk) {
+        this.pk = pk;
+    }
+
+    public void setWins(int wins) {
+        this.wins = wins;
+    }
+
+    public void setGames(int games) {
+        this.games = games;
+    }
+}
@@ -0,0 +1,52 @@
+package com.dglab.cia.database;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.Embedded;
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * @author doc
+ */
+@Embeddable
+public class HeroWinRateDayKey implements Serializable {
+    private HeroWinRateKey heroKey;
+    private LocalDate day;
+
+    @Embedded
+    public HeroWinRateKey getHeroKey() {
+        return heroKey;
+    }
+
+    @Column(name = "\"day\"", nullable = false, updatable = false)
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public void setHeroKey(HeroWinRateKey heroKey) {
+        this.heroKey = heroKey;
+    }
+
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HeroWinRateDayKey that = (HeroWinRateDayKey) o;
+
+        if (heroKey != null ? !heroKey.equals(that.heroKey) : that.heroKey != null) return false;
+        return day != null ? day.equals(that.day) : that.day == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = heroKey != null ? heroKey.hashCode() : 0;
+        result = 31 * result + (day != null ? day.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,21 @@
+package com.dglab.cia.database;
+
+import java.util.Collection;
+
+/**
+ * Order independent FNV-1a hash of the players of a match, stored as {@link Match#getLobby()}
+ *
+ * @author doc
+ */
+public class LobbyFingerprint {
+	public static long of(Collection<Long> steamIds64) {
+		long[] sorted = steamIds64.stream().mapToLong(Long::longValue).sorted().toArray();
+		long hash = 0xcbf29ce484222325L;
+
+		for (long steamId64 : sorted) {
+			hash = (hash ^ steamId64) * 0x100000001b3L;
+		}
+
+		return hash;
+	}
+}
@@ -12,7 +12,7 @@ import java.util.HashSet;
  * @author doc
  */
 @Entity
-@Table(name = "matches")
+@Table(name = "matches", indexes = @Index(columnList = "lobby, dateTime"))
 public class Match {
 	private long matchId;
 	private String mode;
@@ -21,6 +21,8 @@ public class Match {
 	private byte players;
 	private byte winnerTeam;
 	private MatchMap map;
+	private Long lobby;
+	private boolean ranksPending;
 
 	private Collection<PlayerMatchData> matchData = new HashSet<>();
 	private Collection<Round> rounds = new HashSet<>();
@@ -77,6 +79,19 @@ public class Match {
 	@Column(name = "\"MAP\"", nullable = false)
 	public MatchMap getMap() { return map; }
 
+	// Hash of the sorted player ids, equal for matches played by the same set of players
+	@Column(name = "lobby")
+	public Long getLobby() {
+		return lobby;
+	}
+
+	// Set together with the winner and cleared in the transaction that stores the rank updates
+	@ColumnDefault("false")
+	@Column(name = "ranksPending", nullable = false)
+	public boolean isRanksPending() {
+		return ranksPending;
+	}
+
 	public void setVersion(String version) {
 		this.version = version;
 	}
@@ -112,4 +127,12 @@ public class Match {
 	public void setMap(MatchMap map) {
 		this.map = map;
 	}
+
+	public void setLobby(Long lobby) {
+		this.lobby = lobby;
+	}
+
+	public void setRanksPending(boolean ranksPending) {
+		this.ranksPending = ranksPending;
+	}
 }
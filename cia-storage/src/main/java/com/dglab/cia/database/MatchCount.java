@@ -9,7 +9,7 @@ import javax.persistence.Table;
  * @author doc
  */
 @Entity
-@Table(name = "match_counts")
+@Table(name = "match_day_counts")
 public class MatchCount {
     private MatchKey pk;
     private int matches;
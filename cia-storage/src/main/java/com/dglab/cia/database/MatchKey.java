@@ -7,6 +7,7 @@ import javax.persistence.Embeddable;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import java.io.Serializable;
+import java.time.LocalDate;
 
 /**
  * @author doc
@@ -16,6 +17,7 @@ public class MatchKey implements Serializable {
     private String mode;
     private byte players;
     private MatchMap map;
+    private LocalDate day;
 
     @Column(name = "playerAmount", nullable = false, updatable = false)
     public byte getPlayers() {
@@ -33,6 +35,11 @@ public class MatchKey implements Serializable {
         return map;
     }
 
+    @Column(name = "\"day\"", nullable = false, updatable = false)
+    public LocalDate getDay() {
+        return day;
+    }
+
     public void setMode(String mode) {
         this.mode = mode;
     }
@@ -45,6 +52,10 @@ public class MatchKey implements Serializable {
         this.map = map;
     }
 
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -54,7 +65,8 @@ public class MatchKey implements Serializable {
 
         if (players != matchKey.players) return false;
         if (mode != null ? !mode.equals(matchKey.mode) : matchKey.mode != null) return false;
-        return map == matchKey.map;
+        if (map != matchKey.map) return false;
+        return day != null ? day.equals(matchKey.day) : matchKey.day == null;
 
     }
 
@@ -63,6 +75,7 @@ public class MatchKey implements Serializable {
         int result = mode != null ? mode.hashCode() : 0;
         result = 31 * result + (int) players;
         result = 31 * result + (map != null ? map.hashCode() : 0);
+        result = 31 * result + (day != null ? day.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,193 @@
+package com.dglab.cia.persistence;
+
+import com.dglab.cia.database.HeroWinRateDayKey;
+import com.dglab.cia.database.HeroWinRateKey;
+import com.dglab.cia.json.MatchMap;
+import com.dglab.cia.json.RankRange;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts hero wins and games per day without allocating a key per hero-round.
+ * Hero names and modes are interned to small ids and the whole key is packed into a long:
+ * hero (18 bits) | mode (12) | players (8) | map (4) | rank range (2) | epoch day (20)
+ *
+ * @author doc
+ */
+public class HeroWinRateCounter {
+	private static final int DAY_BITS = 20;
+	private static final int RANGE_BITS = 2;
+	private static final int MAP_BITS = 4;
+	private static final int PLAYERS_BITS = 8;
+	private static final int MODE_BITS = 12;
+	private static final int HERO_BITS = 18;
+
+	private static final int RANGE_SHIFT = DAY_BITS;
+	private static final int MAP_SHIFT = RANGE_SHIFT + RANGE_BITS;
+	private static final int PLAYERS_SHIFT = MAP_SHIFT + MAP_BITS;
+	private static final int MODE_SHIFT = PLAYERS_SHIFT + PLAYERS_BITS;
+	private static final int HERO_SHIFT = MODE_SHIFT + MODE_BITS;
+
+	private static final MatchMap[] MAPS = MatchMap.values();
+	private static final RankRange[] RANGES = RankRange.values();
+
+	public interface Consumer {
+		void accept(HeroWinRateDayKey key, int wins, int games);
+	}
+
+	// Ids start at 1, so a packed key is never 0 and 0 marks a free slot
+	private final Map<String, Integer> heroIds = new HashMap<>();
+	private final List<String> heroes = new ArrayList<>();
+	private final Map<String, Integer> modeIds = new HashMap<>();
+	private final List<String> modes = new ArrayList<>();
+
+	private long[] keys;
+	private int[] wins;
+	private int[] games;
+	private int size;
+
+	public HeroWinRateCounter() {
+		allocate(1024);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		wins = new int[capacity];
+		games = new int[capacity];
+	}
+
+	private static int intern(String value, Map<String, Integer> ids, List<String> values, int bits) {
+		Integer id = ids.get(value);
+
+		if (id == null) {
+			if (values.size() + 1 >= 1 << bits) {
+				throw new IllegalStateException("Too many distinct values to count: " + value);
+			}
+
+			values.add(value);
+			id = values.size();
+			ids.put(value, id);
+		}
+
+		return id;
+	}
+
+	private static int slot(long key, int mask) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	public void add(String hero, String mode, byte players, MatchMap map, RankRange range, LocalDate day, boolean won) {
+		long key = (long) intern(hero, heroIds, heroes, HERO_BITS) << HERO_SHIFT
+				| (long) intern(mode, modeIds, modes, MODE_BITS) << MODE_SHIFT
+				| (long) (players & 0xFF) << PLAYERS_SHIFT
+				| (long) map.ordinal() << MAP_SHIFT
+				| (long) range.ordinal() << RANGE_SHIFT
+				| day.toEpochDay();
+
+		add(key, won ? 1 : 0, 1);
+	}
+
+	private void add(long key, int addWins, int addGames) {
+		int mask = keys.length - 1;
+		int index = slot(key, mask);
+
+		while (keys[index] != 0 && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+
+		wins[index] += addWins;
+		games[index] += addGames;
+
+		if (keys[index] == 0) {
+			keys[index] = key;
+
+			if (++size * 2 > keys.length) {
+				grow();
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldWins = wins;
+		int[] oldGames = games;
+
+		allocate(oldKeys.length * 2);
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				add(oldKeys[i], oldWins[i], oldGames[i]);
+			}
+		}
+	}
+
+	// Ids of the other counter are remapped to this one, partial counters may intern in any order
+	public void merge(HeroWinRateCounter other) {
+		int[] heroRemap = remap(other.heroes, heroIds, heroes, HERO_BITS);
+		int[] modeRemap = remap(other.modes, modeIds, modes, MODE_BITS);
+		long rest = (1L << MODE_SHIFT) - 1;
+
+		for (int i = 0; i < other.keys.length; i++) {
+			long key = other.keys[i];
+
+			if (key != 0) {
+				long remapped = (long) heroRemap[field(key, HERO_SHIFT, HERO_BITS)] << HERO_SHIFT
+						| (long) modeRemap[field(key, MODE_SHIFT, MODE_BITS)] << MODE_SHIFT
+						| key & rest;
+
+				add(remapped, other.wins[i], other.games[i]);
+			}
+		}
+	}
+
+	private static int[] remap(List<String> otherValues, Map<String, Integer> ids, List<String> values, int bits) {
+		int[] remap = new int[otherValues.size() + 1];
+
+		for (int i = 0; i < otherValues.size(); i++) {
+			remap[i + 1] = intern(otherValues.get(i), ids, values, bits);
+		}
+
+		return remap;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void forEach(Consumer consumer) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				consumer.accept(createKey(keys[i]), wins[i], games[i]);
+			}
+		}
+	}
+
+	private HeroWinRateDayKey createKey(long key) {
+		HeroWinRateKey heroKey = new HeroWinRateKey();
+		heroKey.setHeroName(heroes.get(field(key, HERO_SHIFT, HERO_BITS) - 1));
+		heroKey.setMode(modes.get(field(key, MODE_SHIFT, MODE_BITS) - 1));
+		heroKey.setPlayers((byte) field(key, PLAYERS_SHIFT, PLAYERS_BITS));
+		heroKey.setMap(MAPS[field(key, MAP_SHIFT, MAP_BITS)]);
+		heroKey.setRankRange(RANGES[field(key, RANGE_SHIFT, RANGE_BITS)]);
+
+		HeroWinRateDayKey dayKey = new HeroWinRateDayKey();
+		dayKey.setHeroKey(heroKey);
+		dayKey.setDay(LocalDate.ofEpochDay(field(key, 0, DAY_BITS)));
+
+		return dayKey;
+	}
+
+	private static int field(long key, int shift, int bits) {
+		return (int) ((key >>> shift) & ((1L << bits) - 1));
+	}
+}
@@ -0,0 +1,192 @@
+package com.dglab.cia.persistence;
+
+import com.dglab.cia.database.EliteStreak;
+import com.dglab.cia.database.PlayerName;
+import com.dglab.cia.database.PlayerRank;
+import com.dglab.cia.json.RankedMode;
+import com.dglab.cia.json.RankedPlayer;
+import com.dglab.cia.json.Streak;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory leaderboards per season and mode, kept in the same order as the top players query.
+ * Changes are applied once their transaction commits, and boards of past seasons are dropped when a new one starts.
+ *
+ * @author doc
+ */
+@Component
+public class LeaderboardIndex {
+	private static final Logger log = LoggerFactory.getLogger(LeaderboardIndex.class);
+
+	private static final Comparator<Entry> ORDER = Comparator
+			.<Entry>comparingInt(entry -> entry.rank)
+			.thenComparing(Comparator.<Entry>comparingInt(entry -> entry.maxStreak).reversed())
+			.thenComparingLong(entry -> entry.steamId64);
+
+	private final Map<Byte, Map<RankedMode, Board>> seasons = new ConcurrentHashMap<>();
+
+	private static class Entry {
+		private final long steamId64;
+		private final byte rank;
+		private final Streak streak;
+		private final int maxStreak;
+		private final String name;
+		private final String avatarUrl;
+
+		private Entry(long steamId64, byte rank, Streak streak, String name, String avatarUrl) {
+			this.steamId64 = steamId64;
+			this.rank = rank;
+			this.streak = streak;
+			this.maxStreak = streak != null ? streak.getMax() : 0;
+			this.name = name;
+			this.avatarUrl = avatarUrl;
+		}
+
+		private RankedPlayer toPlayer() {
+			RankedPlayer player = new RankedPlayer(steamId64, rank);
+
+			if (streak != null) {
+				player.setStreak(new Streak(streak.getCurrent(), streak.getMax()));
+			}
+
+			player.setName(name);
+			player.setAvatarUrl(avatarUrl);
+
+			return player;
+		}
+	}
+
+	private static class Board {
+		private final NavigableSet<Entry> ordered = new ConcurrentSkipListSet<>(ORDER);
+		private final Map<Long, Entry> players = new ConcurrentHashMap<>();
+		private volatile boolean loaded;
+
+		private synchronized void put(Entry entry) {
+			Entry previous = players.get(entry.steamId64);
+
+			if (previous != null) {
+				ordered.remove(previous);
+			}
+
+			players.put(entry.steamId64, entry);
+			ordered.add(entry);
+		}
+	}
+
+	private Board getBoard(byte season, RankedMode mode) {
+		Map<RankedMode, Board> boards = seasons.get(season);
+
+		if (boards == null) {
+			boards = seasons.computeIfAbsent(season, s -> new ConcurrentHashMap<>());
+			seasons.keySet().removeIf(past -> past < season);
+		}
+
+		return boards.computeIfAbsent(mode, m -> new Board());
+	}
+
+	// Boards that are not there yet will read the change from the database when they are loaded
+	private Board findBoard(byte season, RankedMode mode) {
+		Map<RankedMode, Board> boards = seasons.get(season);
+		return boards != null ? boards.get(mode) : null;
+	}
+
+	// Names are read here, inside the transaction, the entity can not be used once it is closed
+	private static Entry createEntry(PlayerRank rank) {
+		EliteStreak eliteStreak = rank.getStreak();
+		Streak streak = null;
+
+		if (eliteStreak != null) {
+			streak = new Streak(eliteStreak.getCurrentStreak(), eliteStreak.getMaxStreak());
+		}
+
+		PlayerName playerName = rank.getName();
+		String name = playerName != null ? playerName.getName() : null;
+		String avatarUrl = playerName != null ? playerName.getAvatarUrl() : null;
+
+		return new Entry(rank.getPk().getSteamId64(), rank.getRank(), streak, name, avatarUrl);
+	}
+
+	public boolean isLoaded(byte season, RankedMode mode) {
+		return getBoard(season, mode).loaded;
+	}
+
+	// Updates wait for the load to finish, so they are always applied on top of the loaded ranks
+	public void load(byte season, RankedMode mode, Supplier<Collection<PlayerRank>> loader) {
+		Board board = getBoard(season, mode);
+
+		synchronized (board) {
+			if (board.loaded) {
+				return;
+			}
+
+			Collection<PlayerRank> ranks = loader.get();
+
+			for (PlayerRank rank : ranks) {
+				board.put(createEntry(rank));
+			}
+
+			board.loaded = true;
+
+			log.info("Loaded leaderboard for season {} {}, {} players", season, mode, ranks.size());
+		}
+	}
+
+	public void update(PlayerRank rank) {
+		byte season = rank.getPk().getSeason();
+		RankedMode mode = rank.getPk().getMode();
+		boolean named = rank.getName() != null;
+		Entry entry = createEntry(rank);
+
+		Transactions.afterCommit(() -> {
+			Board board = findBoard(season, mode);
+
+			if (board == null) {
+				return;
+			}
+
+			Entry previous = board.players.get(entry.steamId64);
+
+			// A rank saved without its name keeps the one already on the board
+			if (!named && previous != null) {
+				board.put(new Entry(entry.steamId64, entry.rank, entry.streak, previous.name, previous.avatarUrl));
+			} else {
+				board.put(entry);
+			}
+		});
+	}
+
+	public void updateName(PlayerName playerName) {
+		long steamId64 = playerName.getSteamId64();
+		String name = playerName.getName();
+		String avatarUrl = playerName.getAvatarUrl();
+
+		Transactions.afterCommit(() -> {
+			for (Map<RankedMode, Board> boards : seasons.values()) {
+				for (Board board : boards.values()) {
+					Entry entry = board.players.get(steamId64);
+
+					if (entry != null) {
+						board.put(new Entry(entry.steamId64, entry.rank, entry.streak, name, avatarUrl));
+					}
+				}
+			}
+		});
+	}
+
+	public List<RankedPlayer> getTopPlayers(byte season, RankedMode mode, int amount) {
+		return getBoard(season, mode)
+				.ordered
+				.stream()
+				.limit(amount)
+				.map(Entry::toPlayer)
+				.collect(Collectors.toList());
+	}
+}
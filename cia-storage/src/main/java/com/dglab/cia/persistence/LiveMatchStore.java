@@ -0,0 +1,296 @@
+package com.dglab.cia.persistence;
+
+import com.dglab.cia.database.PlayerRoundData;
+import com.dglab.cia.database.Round;
+import com.dglab.cia.json.PlayerRoundInfo;
+import com.dglab.cia.json.RoundInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Buffers rounds of matches in progress and writes them to the database in batches.
+ * Every buffered round is journaled to a local file first, so a crash loses nothing.
+ * Rounds that still can not be written after cia.rounds.maxFlushAttempts flushes are moved to rounds.dead,
+ * in the journal format, so they can be put back into the journal once the cause is fixed.
+ *
+ * @author doc
+ */
+@Component
+public class LiveMatchStore {
+	private static final Logger log = LoggerFactory.getLogger(LiveMatchStore.class);
+	private static final Path JOURNAL = Paths.get("rounds.journal");
+	private static final Path JOURNAL_REWRITE = Paths.get("rounds.journal.tmp");
+	private static final Path DEAD_LETTERS = Paths.get("rounds.dead");
+	private static final int MAX_FLUSH_ATTEMPTS = Integer.getInteger("cia.rounds.maxFlushAttempts", 120);
+
+	@Autowired
+	private MatchDao matchDao;
+
+	@Autowired
+	private ObjectMapper mapper;
+
+	private final Object flushLock = new Object();
+	private final Map<Long, Instant> liveMatches = new HashMap<>();
+	private final Map<Long, Map<Short, RoundInfo>> pending = new LinkedHashMap<>();
+	private final Map<Long, Integer> failedFlushes = new HashMap<>();
+	private FileChannel journal;
+
+	@PostConstruct
+	public synchronized void replayJournal() throws IOException {
+		if (Files.exists(JOURNAL)) {
+			for (String line : Files.readAllLines(JOURNAL, StandardCharsets.UTF_8)) {
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				try {
+					addPending(mapper.readValue(line, RoundInfo.class));
+				} catch (IOException e) {
+					log.warn("Skipping damaged journal entry: {}", e.toString());
+				}
+			}
+
+			log.info("Replayed {} buffered rounds from journal", pending.values().stream().mapToInt(Map::size).sum());
+		}
+
+		journal = FileChannel.open(JOURNAL, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		rewriteJournal();
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		flush();
+
+		synchronized (this) {
+			journal.close();
+		}
+	}
+
+	public synchronized void registerMatch(long matchId) {
+		liveMatches.put(matchId, Instant.now());
+	}
+
+	public synchronized boolean isLive(long matchId) {
+		return liveMatches.containsKey(matchId);
+	}
+
+	public synchronized void putRound(RoundInfo roundInfo) throws IOException {
+		writeJournalEntry(journal, roundInfo);
+		journal.force(false);
+
+		addPending(roundInfo);
+		liveMatches.put(roundInfo.getMatchId(), Instant.now());
+	}
+
+	// Called when the winner arrives, the match must be complete in the database after this
+	public void finishMatch(long matchId) {
+		synchronized (flushLock) {
+			Map<Short, RoundInfo> rounds;
+
+			synchronized (this) {
+				liveMatches.remove(matchId);
+				rounds = pending.remove(matchId);
+			}
+
+			if (rounds == null) {
+				return;
+			}
+
+			try {
+				matchDao.putRounds(createRounds(rounds.values().stream()));
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					restorePending(matchId, rounds);
+				}
+
+				throw e;
+			}
+
+			synchronized (this) {
+				rewriteJournal();
+			}
+		}
+	}
+
+	@Scheduled(fixedDelay = 5000)
+	public void flush() {
+		synchronized (flushLock) {
+			Map<Long, Map<Short, RoundInfo>> toFlush;
+
+			synchronized (this) {
+				Instant expired = Instant.now().minus(1, ChronoUnit.DAYS);
+				liveMatches.values().removeIf(lastUpdate -> lastUpdate.isBefore(expired));
+
+				if (pending.isEmpty()) {
+					return;
+				}
+
+				toFlush = new LinkedHashMap<>(pending);
+				pending.clear();
+			}
+
+			Set<Long> flushed = new HashSet<>(toFlush.keySet());
+
+			try {
+				matchDao.putRounds(createRounds(toFlush.values().stream().flatMap(rounds -> rounds.values().stream())));
+				toFlush.clear();
+			} catch (RuntimeException e) {
+				log.warn("Batch round flush failed, falling back to per-match writes: {}", e.toString());
+
+				toFlush.entrySet().removeIf(entry -> {
+					try {
+						matchDao.putRounds(createRounds(entry.getValue().values().stream()));
+						return true;
+					} catch (RuntimeException matchException) {
+						log.warn("Could not flush rounds of match {}: {}", entry.getKey(), matchException.toString());
+						return false;
+					}
+				});
+			}
+
+			flushed.removeAll(toFlush.keySet());
+
+			synchronized (this) {
+				failedFlushes.keySet().removeAll(flushed);
+
+				toFlush.forEach((matchId, rounds) -> {
+					int attempts = failedFlushes.merge(matchId, 1, Integer::sum);
+
+					if (attempts >= MAX_FLUSH_ATTEMPTS) {
+						failedFlushes.remove(matchId);
+						deadLetter(matchId, rounds, attempts);
+					} else {
+						restorePending(matchId, rounds);
+					}
+				});
+
+				rewriteJournal();
+			}
+		}
+	}
+
+	private void addPending(RoundInfo roundInfo) {
+		pending.computeIfAbsent(roundInfo.getMatchId(), id -> new TreeMap<>()).put(roundInfo.getRoundNumber(), roundInfo);
+	}
+
+	// Rounds received while the flush was running are newer and take precedence
+	private void restorePending(long matchId, Map<Short, RoundInfo> rounds) {
+		Map<Short, RoundInfo> current = pending.computeIfAbsent(matchId, id -> new TreeMap<>());
+		rounds.forEach(current::putIfAbsent);
+	}
+
+	// The old journal stays in place until the new one is complete on disk, then it is swapped in at once
+	private void rewriteJournal() {
+		try {
+			try (FileChannel rewrite = FileChannel.open(
+					JOURNAL_REWRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+			)) {
+				for (Map<Short, RoundInfo> rounds : pending.values()) {
+					for (RoundInfo roundInfo : rounds.values()) {
+						writeJournalEntry(rewrite, roundInfo);
+					}
+				}
+
+				rewrite.force(false);
+			}
+
+			Files.move(JOURNAL_REWRITE, JOURNAL, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			journal.close();
+			journal = FileChannel.open(JOURNAL, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			// Appends keep going to the old journal, which still holds everything that is pending
+			log.error("Could not rewrite round journal: {}", e.toString());
+		}
+	}
+
+	private void writeJournalEntry(FileChannel channel, RoundInfo roundInfo) throws IOException {
+		ByteBuffer entry = ByteBuffer.wrap((mapper.writeValueAsString(roundInfo) + "\n").getBytes(StandardCharsets.UTF_8));
+
+		while (entry.hasRemaining()) {
+			channel.write(entry);
+		}
+	}
+
+	private void deadLetter(long matchId, Map<Short, RoundInfo> rounds, int attempts) {
+		log.error("Giving up on {} rounds of match {} after {} failed flushes, moving them to {}",
+				rounds.size(), matchId, attempts, DEAD_LETTERS);
+
+		try (FileChannel deadLetters = FileChannel.open(
+				DEAD_LETTERS, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+		)) {
+			for (RoundInfo roundInfo : rounds.values()) {
+				writeJournalEntry(deadLetters, roundInfo);
+			}
+
+			deadLetters.force(false);
+		} catch (IOException e) {
+			log.error("Could not write rounds of match {} to {}, keeping them pending: {}", matchId, DEAD_LETTERS, e.toString());
+			restorePending(matchId, rounds);
+		}
+	}
+
+	private List<Round> createRounds(Stream<RoundInfo> roundInfos) {
+		return roundInfos.map(this::createRound).collect(Collectors.toList());
+	}
+
+	private Round createRound(RoundInfo roundInfo) {
+		Round round = new Round();
+
+		Round.Pk roundKey = new Round.Pk();
+		roundKey.setMatchId(roundInfo.getMatchId());
+		roundKey.setNumber(roundInfo.getRoundNumber());
+
+		round.setPk(roundKey);
+
+		if (roundInfo.getWinner() != null) {
+			round.setWinner(roundInfo.getWinner());
+		}
+
+		Collection<PlayerRoundData> playerRoundData = new HashSet<>();
+
+		for (PlayerRoundInfo playerRoundInfo : roundInfo.getPlayers()) {
+			PlayerRoundData roundData = new PlayerRoundData();
+
+			PlayerRoundData.Pk playerKey = new PlayerRoundData.Pk();
+
+			playerKey.setMatchId(roundKey.getMatchId());
+			playerKey.setNumber(roundKey.getNumber());
+			playerKey.setSteamId64(playerRoundInfo.getSteamId64());
+
+			roundData.setRound(round);
+			roundData.setPk(playerKey);
+			roundData.setHero(playerRoundInfo.getHero());
+			roundData.setScore(playerRoundInfo.getScore());
+			roundData.setDamageDealt(playerRoundInfo.getDamageDealt());
+			roundData.setProjectilesFired(playerRoundInfo.getProjectilesFired());
+			roundData.setConnectionState(playerRoundInfo.getConnectionState());
+
+			playerRoundData.add(roundData);
+		}
+
+		round.setPlayerRoundData(playerRoundData);
+
+		return round;
+	}
+}
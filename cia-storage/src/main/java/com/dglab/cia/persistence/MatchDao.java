@@ -3,17 +3,18 @@ package com.dglab.cia.persistence;
 import com.dglab.cia.database.Match;
 import com.dglab.cia.database.PlayerMatchData;
 import com.dglab.cia.database.Round;
-import org.hibernate.Hibernate;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.*;
 import javax.persistence.metamodel.EntityType;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -33,19 +34,96 @@ public class MatchDao {
 		entityManager.merge(round);
 	}
 
-	public Match getMatch(long id) {
-		Match match = entityManager.find(Match.class, id);
+	public void putRounds(Collection<Round> rounds) {
+		int count = 0;
 
-		if (match != null) {
-			Hibernate.initialize(match.getMatchData());
-			Hibernate.initialize(match.getRounds());
+		for (Round round : rounds) {
+			entityManager.merge(round);
 
-			for (Round round : match.getRounds()) {
-				Hibernate.initialize(round.getPlayerRoundData());
+			if (++count % 50 == 0) {
+				entityManager.flush();
+				entityManager.clear();
 			}
 		}
+	}
+
+	public Match getMatchHeader(long id) {
+		return entityManager.find(Match.class, id);
+	}
+
+	public Match getMatch(long id) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+
+		CriteriaQuery<Match> matchQuery = builder.createQuery(Match.class);
+		Root<Match> matchRoot = matchQuery.from(Match.class);
+		matchRoot.fetch("matchData", JoinType.LEFT).fetch("name", JoinType.LEFT);
+		matchQuery.select(matchRoot).distinct(true);
+		matchQuery.where(builder.equal(matchRoot.get("matchId"), id));
+
+		List<Match> matches = entityManager.createQuery(matchQuery).getResultList();
+
+		if (matches.isEmpty()) {
+			return null;
+		}
+
+		// Two bags can't be join fetched at once, so rounds and their data go in separate queries
+		CriteriaQuery<Match> roundsQuery = builder.createQuery(Match.class);
+		Root<Match> roundsRoot = roundsQuery.from(Match.class);
+		roundsRoot.fetch("rounds", JoinType.LEFT);
+		roundsQuery.select(roundsRoot).distinct(true);
+		roundsQuery.where(builder.equal(roundsRoot.get("matchId"), id));
+
+		entityManager.createQuery(roundsQuery).getResultList();
+
+		CriteriaQuery<Round> roundDataQuery = builder.createQuery(Round.class);
+		Root<Round> roundDataRoot = roundDataQuery.from(Round.class);
+		roundDataRoot.fetch("playerRoundData", JoinType.LEFT);
+		roundDataQuery.select(roundDataRoot).distinct(true);
+		roundDataQuery.where(builder.equal(roundDataRoot.get("pk").get("matchId"), id));
+
+		entityManager.createQuery(roundDataQuery).getResultList();
+
+		return matches.get(0);
+	}
 
-		return match;
+	public List<Long> getMatchPlayers(long id) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+
+		Root<PlayerMatchData> root = query.from(PlayerMatchData.class);
+		query.select(root.get("pk").get("steamId64"));
+		query.where(builder.equal(root.get("pk").get("matchId"), id));
+
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	public boolean isRanksPending(long id) {
+		Match match = entityManager.find(Match.class, id);
+		return match != null && match.isRanksPending();
+	}
+
+	// Matches with a winner whose rank updates were not stored yet
+	public List<Long> getRanksPendingMatches() {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+
+		Root<Match> root = query.from(Match.class);
+		query.select(root.get("matchId"));
+		query.where(builder.isTrue(root.get("ranksPending")));
+		query.orderBy(builder.asc(root.get("dateTime")));
+
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	public void setRanksProcessed(long id) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaUpdate<Match> update = builder.createCriteriaUpdate(Match.class);
+
+		Root<Match> root = update.from(Match.class);
+		update.set(root.<Boolean>get("ranksPending"), false);
+		update.where(builder.equal(root.get("matchId"), id));
+
+		entityManager.createQuery(update).executeUpdate();
 	}
 
     public List<Match> getRecentPlayerMatches(long steamId64, int amount) {
@@ -62,28 +140,24 @@ public class MatchDao {
         return entityManager.createQuery(query).setMaxResults(amount).getResultList();
     }
 
-	public List<Match> getPlayerMatchesInADay(long steamId64) {
+	// Other matches of the lobby in the last day counted per (mode, players, map), without loading them
+	public List<Tuple> countLobbyMatchesInADay(long lobby, long exceptMatchId) {
 		Instant lastDay = Instant.now().minus(1, ChronoUnit.DAYS);
 
 		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-		CriteriaQuery<Match> query = builder.createQuery(Match.class);
-		EntityType<Match> entity = entityManager.getMetamodel().entity(Match.class);
-		Root<Match> root = query.from(entity);
-		query.select(root);
-		Join<Match, PlayerMatchData> join = root.join(entity.getCollection("matchData", PlayerMatchData.class));
+		CriteriaQuery<Tuple> query = builder.createTupleQuery();
+		Root<Match> root = query.from(Match.class);
+		query.multiselect(root.get("mode"), root.get("players"), root.get("map"), builder.count(root));
 		query.where(
 				builder.and(
-						builder.equal(join.get("pk").get("steamId64"), steamId64),
-						builder.greaterThan(root.get("dateTime"), lastDay)
+						builder.equal(root.get("lobby"), lobby),
+						builder.greaterThan(root.get("dateTime"), lastDay),
+						builder.notEqual(root.get("matchId"), exceptMatchId)
 				)
 		);
-		query.orderBy(builder.desc(root.get("dateTime")));
-
-		List<Match> resultList = entityManager.createQuery(query).getResultList();
-
-		resultList.stream().map(Match::getMatchData).forEach(Hibernate::initialize);
+		query.groupBy(root.get("mode"), root.get("players"), root.get("map"));
 
-		return resultList;
+		return entityManager.createQuery(query).getResultList();
 	}
 
 	public void save(Match match) {
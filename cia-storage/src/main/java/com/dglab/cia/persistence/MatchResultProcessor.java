@@ -0,0 +1,196 @@
+package com.dglab.cia.persistence;
+
+import com.dglab.cia.json.MatchWinner;
+import com.dglab.cia.json.RankUpdateDetails;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores match winners on the request thread and processes rank updates off it.
+ * Independent matches run in parallel. A rank update starts only after the earlier submitted updates of its players
+ * finished, so every player's matches are ranked in the order they ended. {@link PlayerLocks} still keeps them apart
+ * from the other writers of ranks.
+ * Results are kept for an hour for the game server to poll.
+ * Matches are marked in the database until their ranks are stored, marked matches are processed again on startup.
+ *
+ * @author doc
+ */
+@Component
+public class MatchResultProcessor {
+	private static final Logger log = LoggerFactory.getLogger(MatchResultProcessor.class);
+	private static final int THREADS = Integer.getInteger("cia.rankThreads", 4);
+
+	@Autowired
+	private MatchService matchService;
+
+	@Autowired
+	private RankService rankService;
+
+	private final AtomicInteger threadNumber = new AtomicInteger();
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "rank-processor-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<Long, Result> results = new ConcurrentHashMap<>();
+
+	// Last queued rank update of every player that has one pending
+	private final Map<Long, CompletableFuture<Void>> pending = new HashMap<>();
+
+	private static class Result {
+		private final CompletableFuture<RankUpdateDetails> details = new CompletableFuture<>();
+		private volatile Instant completed;
+	}
+
+	// Returns false if the winner of this match was already submitted, failed submissions can be repeated.
+	// The winner is stored before this returns, so an acknowledged winner survives a restart.
+	public boolean submit(MatchWinner winner) {
+		long matchId = winner.getMatchId();
+		Result result = new Result();
+		Result previous = results.putIfAbsent(matchId, result);
+
+		if (previous != null) {
+			if (!previous.details.isCompletedExceptionally() || !results.replace(matchId, previous, result)) {
+				return false;
+			}
+		}
+
+		boolean finished;
+
+		// A failed submission left behind only failed rank processing, the winner itself was stored.
+		// A winner stored before a restart can still have its ranks pending.
+		try {
+			finished = previous != null || matchService.putWinner(winner) || matchService.isRanksPending(matchId);
+		} catch (RuntimeException e) {
+			results.remove(matchId, result);
+			throw e;
+		}
+
+		if (!finished) {
+			result.details.complete(null);
+			result.completed = Instant.now();
+			return true;
+		}
+
+		process(matchId, result);
+		return true;
+	}
+
+	// Rank updates that were queued when the process stopped
+	@PostConstruct
+	public void resumePendingRanks() {
+		List<Long> matches = matchService.getRanksPendingMatches();
+
+		for (long matchId : matches) {
+			Result result = new Result();
+
+			if (results.putIfAbsent(matchId, result) == null) {
+				process(matchId, result);
+			}
+		}
+
+		if (!matches.isEmpty()) {
+			log.info("Resumed rank processing of {} matches", matches.size());
+		}
+	}
+
+	private void process(long matchId, Result result) {
+		dispatch(matchService.getMatchPlayers(matchId), () -> {
+			try {
+				result.details.complete(rankService.processMatchResults(matchId));
+			} catch (Exception e) {
+				log.error("Could not process results of match {}: {}", matchId, e.toString());
+				result.details.completeExceptionally(e);
+			} finally {
+				result.completed = Instant.now();
+			}
+		});
+	}
+
+	private void dispatch(Collection<Long> players, Runnable task) {
+		CompletableFuture<Void> job;
+
+		synchronized (pending) {
+			CompletableFuture<?>[] earlier = players
+					.stream()
+					.map(pending::get)
+					.filter(Objects::nonNull)
+					.distinct()
+					.toArray(CompletableFuture[]::new);
+
+			job = CompletableFuture
+					.allOf(earlier)
+					.exceptionally(error -> null)
+					.thenRunAsync(task, executor);
+
+			for (Long player : players) {
+				pending.put(player, job);
+			}
+		}
+
+		job.whenComplete((ignored, error) -> {
+			synchronized (pending) {
+				for (Long player : players) {
+					pending.remove(player, job);
+				}
+			}
+		});
+	}
+
+	// Null if no winner was submitted for this match in the last hour
+	public CompletableFuture<RankUpdateDetails> getResult(long matchId) {
+		Result result = results.get(matchId);
+		return result != null ? result.details : null;
+	}
+
+	@Scheduled(fixedDelay = 60000)
+	public void expireResults() {
+		Instant expired = Instant.now().minus(1, ChronoUnit.HOURS);
+		results.values().removeIf(result -> result.completed != null && result.completed.isBefore(expired));
+	}
+
+	// Queued matches are still processed before shutdown
+	@PreDestroy
+	public void close() throws InterruptedException {
+		CompletableFuture<?>[] queued;
+
+		synchronized (pending) {
+			queued = pending.values().stream().distinct().toArray(CompletableFuture[]::new);
+		}
+
+		// Updates waiting for earlier ones are handed to the executor only as those finish
+		try {
+			CompletableFuture.allOf(queued).get(1, TimeUnit.MINUTES);
+		} catch (ExecutionException | TimeoutException e) {
+			log.warn("Rank processing queue was not drained on shutdown");
+		}
+
+		executor.shutdown();
+
+		if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+			log.warn("Rank processing queue was not drained on shutdown");
+		}
+	}
+}
@@ -13,4 +13,7 @@ public interface MatchService {
 	void putMatch(MatchInfo matchInfo);
 	void putRound(RoundInfo roundInfo);
 	boolean putWinner(MatchWinner winner);
+	List<Long> getMatchPlayers(long matchId);
+	boolean isRanksPending(long matchId);
+	List<Long> getRanksPendingMatches();
 }
@@ -7,6 +7,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Clock;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -29,6 +31,15 @@ public class MatchServiceImpl implements MatchService {
 	@Autowired
 	private PlayerNameService playerNameService;
 
+	@Autowired
+	private LiveMatchStore liveMatchStore;
+
+	@Autowired
+	private StatsService statsService;
+
+	@Autowired
+	private ResponseCache responseCache;
+
 	@Override
 	public MatchDetails getMatchDetails(long matchId) {
 		Match match = matchDao.getMatch(matchId);
@@ -143,61 +154,45 @@ public class MatchServiceImpl implements MatchService {
 		);
 
 		match.setMatchData(playerMatchData);
+		match.setLobby(LobbyFingerprint.of(
+				playerMatchData.stream().map(data -> data.getPk().getSteamId64()).collect(Collectors.toList())
+		));
 
         matchDao.putMatch(match);
+		liveMatchStore.registerMatch(match.getMatchId());
+
+		responseCache.invalidate(ResponseCache.Type.MATCH, match.getMatchId());
+		matchInfo.getPlayers().forEach(player ->
+				responseCache.invalidate(ResponseCache.Type.PLAYER_MATCHES, player.getSteamId64())
+		);
 	}
 
 	@Override
 	public void putRound(RoundInfo roundInfo) {
-		Match match = matchDao.getMatch(roundInfo.getMatchId());
+		if (!liveMatchStore.isLive(roundInfo.getMatchId())) {
+			if (matchDao.getMatchHeader(roundInfo.getMatchId()) == null) {
+				throw new IllegalArgumentException();
+			}
 
-		if (match == null) {
-			throw new IllegalArgumentException();
+			liveMatchStore.registerMatch(roundInfo.getMatchId());
 		}
 
-		Round round = new Round();
-
-		Round.Pk roundKey = new Round.Pk();
-		roundKey.setMatchId(match.getMatchId());
-		roundKey.setNumber(roundInfo.getRoundNumber());
-
-		round.setPk(roundKey);
-		round.setMatch(match);
-
-		if (roundInfo.getWinner() != null) {
-			round.setWinner(roundInfo.getWinner());
+		try {
+			liveMatchStore.putRound(roundInfo);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 
-		Collection<PlayerRoundData> playerRoundData = new HashSet<>();
-
-		for (PlayerRoundInfo playerRoundInfo : roundInfo.getPlayers()) {
-			PlayerRoundData roundData = new PlayerRoundData();
-
-			PlayerRoundData.Pk playerKey = new PlayerRoundData.Pk();
-
-			playerKey.setMatchId(roundKey.getMatchId());
-			playerKey.setNumber(roundKey.getNumber());
-			playerKey.setSteamId64(playerRoundInfo.getSteamId64());
-
-			roundData.setRound(round);
-			roundData.setPk(playerKey);
-			roundData.setHero(playerRoundInfo.getHero());
-			roundData.setScore(playerRoundInfo.getScore());
-			roundData.setDamageDealt(playerRoundInfo.getDamageDealt());
-			roundData.setProjectilesFired(playerRoundInfo.getProjectilesFired());
-			roundData.setConnectionState(playerRoundInfo.getConnectionState());
-
-			playerRoundData.add(roundData);
-		}
-
-		round.setPlayerRoundData(playerRoundData);
-
-		matchDao.putRound(round);
+		responseCache.invalidate(ResponseCache.Type.MATCH, roundInfo.getMatchId());
 	}
 
 	@Override
 	public boolean putWinner(MatchWinner winner) {
-		Match match = matchDao.getMatch(winner.getMatchId());
+		// Rounds of the match are stored once it finishes
+		liveMatchStore.finishMatch(winner.getMatchId());
+		responseCache.invalidate(ResponseCache.Type.MATCH, winner.getMatchId());
+
+		Match match = matchDao.getMatchHeader(winner.getMatchId());
 
 		if (match == null) {
 			throw new IllegalArgumentException();
@@ -206,12 +201,34 @@ public class MatchServiceImpl implements MatchService {
 		if (match.getWinnerTeam() == 0) {
 
 			match.setWinnerTeam(winner.getWinnerTeam());
+			match.setRanksPending(true);
 
 			matchDao.save(match);
+			responseCache.invalidate(ResponseCache.Type.MATCH, match.getMatchId());
+
+			statsService.addMatchCount(match);
+			statsService.addMatchWinRates(matchDao.getMatch(match.getMatchId()));
+			responseCache.invalidate(ResponseCache.Type.WIN_RATES);
+			responseCache.invalidate(ResponseCache.Type.WIN_RATE_SERIES);
 
 			return true;
 		}
 
 		return false;
 	}
+
+	@Override
+	public List<Long> getMatchPlayers(long matchId) {
+		return matchDao.getMatchPlayers(matchId);
+	}
+
+	@Override
+	public boolean isRanksPending(long matchId) {
+		return matchDao.isRanksPending(matchId);
+	}
+
+	@Override
+	public List<Long> getRanksPendingMatches() {
+		return matchDao.getRanksPendingMatches();
+	}
 }
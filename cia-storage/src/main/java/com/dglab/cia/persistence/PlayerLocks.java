@@ -0,0 +1,55 @@
+package com.dglab.cia.persistence;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Striped locks on steamId64, serializes read-modify-write of the same player's ranks
+ *
+ * @author doc
+ */
+@Component
+public class PlayerLocks {
+	private static final int STRIPES = 256;
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+	public PlayerLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	private static int stripe(long steamId64) {
+		long hash = steamId64 * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 56) & (STRIPES - 1);
+	}
+
+	public void locked(long steamId64, Runnable action) {
+		locked(Collections.singleton(steamId64), () -> {
+			action.run();
+			return null;
+		});
+	}
+
+	// Stripes are always taken in ascending order, so two matches sharing players can not deadlock
+	public <T> T locked(Collection<Long> steamIds, Supplier<T> action) {
+		int[] stripes = steamIds.stream().mapToInt(PlayerLocks::stripe).distinct().sorted().toArray();
+
+		for (int stripe : stripes) {
+			locks[stripe].lock();
+		}
+
+		try {
+			return action.get();
+		} finally {
+			for (int i = stripes.length - 1; i >= 0; i--) {
+				locks[stripes[i]].unlock();
+			}
+		}
+	}
+}
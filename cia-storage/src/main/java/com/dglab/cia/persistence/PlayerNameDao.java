@@ -17,8 +17,12 @@ public class PlayerNameDao {
 	@PersistenceContext
 	private EntityManager entityManager;
 
+	@Autowired
+	private LeaderboardIndex leaderboardIndex;
+
     @Transactional
 	public void update(PlayerName playerName) {
 		entityManager.merge(playerName);
+		leaderboardIndex.updateName(playerName);
 	}
 }
@@ -5,6 +5,7 @@ import com.dglab.cia.database.EliteStreak;
 import com.dglab.cia.database.PlayerMatchData;
 import com.dglab.cia.database.PlayerRank;
 import com.dglab.cia.database.RankPrimaryKey;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,6 +15,7 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.*;
 import javax.persistence.metamodel.EntityType;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -25,6 +27,14 @@ public class RankDao {
 	@PersistenceContext
 	private EntityManager entityManager;
 
+	@Autowired
+	private LeaderboardIndex leaderboardIndex;
+
+	@Autowired
+	private MatchDao matchDao;
+
+	private final Set<Long> knownPlayers = ConcurrentHashMap.newKeySet();
+
 	public Collection<PlayerRank> findPlayerRanks(long steamId64) {
 		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
 		CriteriaQuery<PlayerRank> query = builder.createQuery(PlayerRank.class);
@@ -52,41 +62,89 @@ public class RankDao {
 	}
 
 	public PlayerRank findPlayerRank(long steamId64, byte season, RankedMode mode) {
+		return findPlayerRanks(Collections.singleton(steamId64), season, mode).get(steamId64);
+	}
+
+	public Map<Long, PlayerRank> findPlayerRanks(Collection<Long> steamIds64, byte season, RankedMode mode) {
+		Map<Long, PlayerRank> result = new HashMap<>();
+		Set<Long> players = findKnownPlayers(steamIds64);
+
+		if (players.isEmpty()) {
+			return result;
+		}
+
 		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-		CriteriaQuery<PlayerMatchData> query = builder.createQuery(PlayerMatchData.class);
+		CriteriaQuery<PlayerRank> query = builder.createQuery(PlayerRank.class);
 
-		Root<PlayerMatchData> matchDataRoot = query.from(PlayerMatchData.class);
-		query.select(matchDataRoot);
-		query.where(builder.equal(matchDataRoot.get("pk").get("steamId64"), steamId64));
+		Root<PlayerRank> root = query.from(PlayerRank.class);
+		query.select(root);
+		query.where(
+				builder.and(
+						root.get("pk").get("steamId64").in(players),
+						builder.equal(root.get("pk").get("season"), season),
+						builder.equal(root.get("pk").get("mode"), mode)
+				)
+		);
+
+		for (PlayerRank rank : entityManager.createQuery(query).getResultList()) {
+			if (checkRankStreak(rank)) {
+				save(rank);
+			}
 
-		if (entityManager.createQuery(query).getResultList().isEmpty()) {
-			return null;
+			result.put(rank.getPk().getSteamId64(), rank);
 		}
 
-		RankPrimaryKey pk = new RankPrimaryKey();
-		pk.setSteamId64(steamId64);
-		pk.setSeason(season);
-		pk.setMode(mode);
+		for (Long steamId64 : players) {
+			if (!result.containsKey(steamId64)) {
+				RankPrimaryKey pk = new RankPrimaryKey();
+				pk.setSteamId64(steamId64);
+				pk.setSeason(season);
+				pk.setMode(mode);
+
+				PlayerRank rank = new PlayerRank();
+				rank.setPk(pk);
+				rank.setStars(mode.getStars());
+				rank.setRank((byte) 30);
+
+				save(rank);
+				result.put(steamId64, rank);
+			}
+		}
 
-		PlayerRank rank = entityManager.find(PlayerRank.class, pk);
+		return result;
+	}
 
-		if (rank == null) {
-			rank = new PlayerRank();
-			rank.setPk(pk);
-			rank.setStars(mode.getStars());
-			rank.setRank((byte) 30);
+	// Players never disappear from match data, so each one needs to be looked up only once
+	private Set<Long> findKnownPlayers(Collection<Long> steamIds64) {
+		Set<Long> result = new HashSet<>();
+		Collection<Long> unknown = new ArrayList<>();
 
-			save(rank);
+		for (Long steamId64 : steamIds64) {
+			if (knownPlayers.contains(steamId64)) {
+				result.add(steamId64);
+			} else {
+				unknown.add(steamId64);
+			}
 		}
 
-		if (checkRankStreak(rank)) {
-			save(rank);
+		if (!unknown.isEmpty()) {
+			CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+			CriteriaQuery<Long> query = builder.createQuery(Long.class);
+
+			Root<PlayerMatchData> root = query.from(PlayerMatchData.class);
+			query.select(root.get("pk").get("steamId64")).distinct(true);
+			query.where(root.get("pk").get("steamId64").in(unknown));
+
+			List<Long> found = entityManager.createQuery(query).getResultList();
+
+			knownPlayers.addAll(found);
+			result.addAll(found);
 		}
 
-		return rank;
+		return result;
 	}
 
-	public Collection<Integer> findPlayerRankOneSeasons(long steamId64, byte currentSeason) {
+	public Map<Long, Collection<Integer>> findPlayerRankOneSeasons(Collection<Long> steamIds64, byte currentSeason) {
         CriteriaBuilder builder = entityManager.getCriteriaBuilder();
         CriteriaQuery<PlayerRank> query = builder.createQuery(PlayerRank.class);
         EntityType<PlayerRank> entity = entityManager.getMetamodel().entity(PlayerRank.class);
@@ -95,7 +153,7 @@ public class RankDao {
         query.select(root);
         query.where(
                 builder.and(
-                        builder.equal(root.get("pk").get("steamId64"), steamId64),
+                        root.get("pk").get("steamId64").in(steamIds64),
                         builder.notEqual(root.get("pk").get("season"), currentSeason),
                         builder.equal(root.get("rank"), 1)
                 )
@@ -105,7 +163,10 @@ public class RankDao {
                 .createQuery(query)
                 .getResultList()
                 .stream()
-                .map(rank -> (int) rank.getPk().getSeason()).collect(Collectors.toSet());
+                .collect(Collectors.groupingBy(
+                        rank -> rank.getPk().getSteamId64(),
+                        Collectors.mapping(rank -> (int) rank.getPk().getSeason(), Collectors.toCollection(HashSet::new))
+                ));
     }
 
 	public List<PlayerRank> findTopPlayers(byte season, RankedMode mode, int amount) {
@@ -132,6 +193,27 @@ public class RankDao {
 		return result;
 	}
 
+	public List<PlayerRank> findSeasonRanks(byte season, RankedMode mode) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<PlayerRank> query = builder.createQuery(PlayerRank.class);
+
+		Root<PlayerRank> root = query.from(PlayerRank.class);
+		root.fetch("streak", JoinType.LEFT);
+		root.fetch("name", JoinType.LEFT);
+		query.select(root);
+		query.where(
+				builder.and(
+						builder.equal(root.get("pk").get("season"), season),
+						builder.equal(root.get("pk").get("mode"), mode)
+				)
+		);
+
+		List<PlayerRank> result = entityManager.createQuery(query).getResultList();
+		result.stream().filter(this::checkRankStreak).forEach(this::save);
+
+		return result;
+	}
+
     public Map<RankedMode, List<PlayerRank>> findTopPlayers(byte season, int amount) {
         Map<RankedMode, List<PlayerRank>> result = new HashMap<>();
 
@@ -150,12 +232,19 @@ public class RankDao {
 		checkRankStreak(rank);
 
 		entityManager.merge(rank);
+		leaderboardIndex.update(rank);
 	}
 
 	public void save(Collection<PlayerRank> ranks) {
 		ranks.forEach(this::save);
 	}
 
+	// The rank updates of a match, committed together with clearing its pending marker
+	public void save(Collection<PlayerRank> ranks, long matchId) {
+		save(ranks);
+		matchDao.setRanksProcessed(matchId);
+	}
+
 	private boolean checkRankStreak(PlayerRank rank) {
 		if (rank.getRank() == 1) {
 			EliteStreak streak = rank.getStreak();
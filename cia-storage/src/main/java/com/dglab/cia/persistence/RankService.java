@@ -16,6 +16,7 @@ public interface RankService {
 	RankedMode getMatchRankedMode(Match match);
 	Map<Long, RankAndStars> getMatchRanks(long matchId);
 	Map<Long, RankedAchievements> getRankedAchievements(long matchId);
+	RanksAndAchievements getMatchRanksAndAchievements(long matchId);
 	RankUpdateDetails processMatchResults(long matchId);
 	Map<RankedMode, List<RankedPlayer>> getTopPlayers();
     RankedInfo getRankedInfo();
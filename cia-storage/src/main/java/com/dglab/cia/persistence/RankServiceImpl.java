@@ -31,8 +31,18 @@ public class RankServiceImpl implements RankService {
 	@Autowired
 	private MatchDao matchDao;
 
+	@Autowired
+	private LeaderboardIndex leaderboardIndex;
+
+	@Autowired
+	private PlayerLocks playerLocks;
+
+	@Autowired
+	private ResponseCache responseCache;
+
     private byte previousSeason = -1;
     private Map<RankedMode, List<PlayerRank>> previousTopPlayers;
+    private Set<Long> previousTopPlayerIds;
 
 	private RankAndStars convertRank(PlayerRank rank) {
 		RankAndStars rankAndStars = new RankAndStars(rank.getRank(), rank.getStars());
@@ -70,6 +80,12 @@ public class RankServiceImpl implements RankService {
 
         if (previousSeason != this.previousSeason) {
             previousTopPlayers = rankDao.findTopPlayers(previousSeason, 3);
+            previousTopPlayerIds = previousTopPlayers
+                    .values()
+                    .stream()
+                    .flatMap(Collection::stream)
+                    .map(rank -> rank.getPk().getSteamId64())
+                    .collect(Collectors.toSet());
 
             this.previousSeason = previousSeason;
         }
@@ -77,6 +93,12 @@ public class RankServiceImpl implements RankService {
         return previousTopPlayers;
     }
 
+    private synchronized Set<Long> getPreviousTopPlayerIds() {
+        getPreviousTopPlayers();
+
+        return previousTopPlayerIds;
+    }
+
 	@Override
 	public Map<RankedMode, RankAndStars> getPlayerRanks(long steamId64) {
 		Collection<PlayerRank> playerRanks = rankDao.findPlayerRanks(steamId64, getCurrentSeason());
@@ -113,10 +135,11 @@ public class RankServiceImpl implements RankService {
 
 	@Override
 	public RankedMode getMatchRankedMode(Match match) {
-		String mode = match.getMode();
-		byte players = match.getPlayers();
+		return getMatchRankedMode(match.getMode(), match.getPlayers(), match.getMap());
+	}
 
-		if (match.getMap() == MatchMap.UNRANKED) {
+	private static RankedMode getMatchRankedMode(String mode, byte players, MatchMap map) {
+		if (map == MatchMap.UNRANKED) {
 			return null;
 		}
 
@@ -143,25 +166,22 @@ public class RankServiceImpl implements RankService {
             return null;
         }
 
+        return getRankedAchievements(match);
+    }
+
+    private Map<Long, RankedAchievements> getRankedAchievements(Match match) {
         byte season = getCurrentSeason();
 
         Map<Long, RankedAchievements> result = new HashMap<>();
+        Map<Long, Collection<Integer>> rankOneSeasons = rankDao.findPlayerRankOneSeasons(getMatchPlayers(match), season);
+        Set<Long> previousTopPlayerIds = getPreviousTopPlayerIds();
 
         for (PlayerMatchData player : match.getMatchData()) {
             long steamId64 = player.getPk().getSteamId64();
 
-            Collection<Integer> seasons = rankDao.findPlayerRankOneSeasons(steamId64, season);
-
             RankedAchievements rankedAchievements = new RankedAchievements();
-            rankedAchievements.setAchievedSeasons(seasons);
-            rankedAchievements.setWasTopPlayer(getPreviousTopPlayers()
-                    .values()
-                    .stream()
-                    .flatMap(Collection::stream)
-                    .filter(r -> r.getPk().getSteamId64() == steamId64)
-                    .findAny()
-                    .isPresent()
-            );
+            rankedAchievements.setAchievedSeasons(rankOneSeasons.getOrDefault(steamId64, new HashSet<>()));
+            rankedAchievements.setWasTopPlayer(previousTopPlayerIds.contains(steamId64));
 
             result.put(steamId64, rankedAchievements);
         }
@@ -177,6 +197,10 @@ public class RankServiceImpl implements RankService {
 			return null;
 		}
 
+		return getMatchRanks(match);
+	}
+
+	private Map<Long, RankAndStars> getMatchRanks(Match match) {
 		RankedMode matchRankedMode = getMatchRankedMode(match);
 		byte season = getCurrentSeason();
 
@@ -185,12 +209,30 @@ public class RankServiceImpl implements RankService {
 		}
 
 		Map<Long, RankAndStars> result = new HashMap<>();
+		Collection<Long> players = getMatchPlayers(match);
+
+		// Missing ranks are created here, so this must not race with a rank update of the same player
+		Map<Long, PlayerRank> ranks = playerLocks.locked(
+				players, () -> rankDao.findPlayerRanks(players, season, matchRankedMode)
+		);
 
 		for (PlayerMatchData player : match.getMatchData()) {
 			long steamId64 = player.getPk().getSteamId64();
-			PlayerRank rank = rankDao.findPlayerRank(steamId64, season, matchRankedMode);
 
-            result.put(steamId64, convertRank(rank));
+            result.put(steamId64, convertRank(ranks.get(steamId64)));
+		}
+
+		return result;
+	}
+
+	@Override
+	public RanksAndAchievements getMatchRanksAndAchievements(long matchId) {
+		RanksAndAchievements result = new RanksAndAchievements();
+		Match match = matchDao.getMatch(matchId);
+
+		if (match != null) {
+			result.setRanks(getMatchRanks(match));
+			result.setAchievements(getRankedAchievements(match));
 		}
 
 		return result;
@@ -210,6 +252,18 @@ public class RankServiceImpl implements RankService {
 			return null;
 		}
 
+		RankUpdateDetails details = scoreMatch(match);
+
+		// Scored matches clear the marker together with their ranks
+		if (details == null) {
+			matchDao.setRanksProcessed(matchId);
+		}
+
+		return details;
+	}
+
+	private RankUpdateDetails scoreMatch(Match match) {
+		long matchId = match.getMatchId();
 		RankedMode matchRankedMode = getMatchRankedMode(match);
 		byte season = getCurrentSeason();
 
@@ -229,10 +283,15 @@ public class RankServiceImpl implements RankService {
 			return null;
 		}
 
+		return playerLocks.locked(getMatchPlayers(match), () -> updateRanks(match, matchRankedMode, season));
+	}
+
+	private RankUpdateDetails updateRanks(Match match, RankedMode matchRankedMode, byte season) {
 		Map<Long, RankAndStars> previous = new HashMap<>();
 		Map<Long, RankAndStars> updated = new HashMap<>();
 
 		List<PlayerRank> toUpdate = new ArrayList<>();
+		Map<Long, PlayerRank> ranks = rankDao.findPlayerRanks(getMatchPlayers(match), season, matchRankedMode);
 
 		for (PlayerMatchData player : match.getMatchData()) {
 			List<PlayerRoundData> playerData = match
@@ -252,7 +311,7 @@ public class RankServiceImpl implements RankService {
 					.anyMatch(data -> data.getConnectionState() == ConnectionState.ABANDONED.ordinal());
 
 			long steamId64 = player.getPk().getSteamId64();
-			PlayerRank playerRank = rankDao.findPlayerRank(steamId64, season, matchRankedMode);
+			PlayerRank playerRank = ranks.get(steamId64);
 			EliteStreak streak = playerRank.getStreak();
 
 			int stars = playerRank.getStars();
@@ -297,9 +356,10 @@ public class RankServiceImpl implements RankService {
 			}
 		}
 
-		rankDao.save(toUpdate);
+		rankDao.save(toUpdate, match.getMatchId());
+		invalidateRanks(updated.keySet());
 
-        log.info("Updated ranks for match {}", matchId);
+        log.info("Updated ranks for match {}", match.getMatchId());
 
 		RankUpdateDetails details = new RankUpdateDetails();
 		details.setPrevious(previous);
@@ -308,36 +368,38 @@ public class RankServiceImpl implements RankService {
 		return details;
 	}
 
-	private boolean checkRankedAbuse(Match match) {
-		PlayerMatchData firstPlayer = match.getMatchData().iterator().next();
-		List<Match> lastMatches = matchDao.getPlayerMatchesInADay(firstPlayer.getPk().getSteamId64());
+	private void invalidateRanks(Collection<Long> steamIds) {
+		for (long steamId64 : steamIds) {
+			responseCache.invalidate(ResponseCache.Type.PLAYER_RANKS, steamId64);
+			responseCache.invalidate(ResponseCache.Type.RANK_HISTORY, steamId64);
+		}
 
-		int sameSetAmount = 0;
+		responseCache.invalidate(ResponseCache.Type.TOP_PLAYERS);
+		responseCache.invalidate(ResponseCache.Type.MODE_TOP_PLAYERS);
+		responseCache.invalidate(ResponseCache.Type.RANKED_INFO);
+	}
 
-		Set<Long> initialSet = match
+	private Collection<Long> getMatchPlayers(Match match) {
+		return match
 				.getMatchData()
 				.stream()
 				.map(data -> data.getPk().getSteamId64())
-				.collect(Collectors.toSet());
-
-		for (Match lastMatch : lastMatches) {
-			if (lastMatch.getMatchId() != match.getMatchId()) {
-
-				if (getMatchRankedMode(lastMatch) != null) {
-					Set<Long> playerSet = lastMatch
-							.getMatchData()
-							.stream()
-							.map(data -> data.getPk().getSteamId64())
-							.collect(Collectors.toSet());
-
-					if (playerSet.equals(initialSet)) {
-						sameSetAmount++;
-					}
-				}
-			}
+				.collect(Collectors.toList());
+	}
+
+	private boolean checkRankedAbuse(Match match) {
+		if (match.getLobby() == null) {
+			return false;
 		}
 
-		return sameSetAmount > 2;
+		long sameLobbyAmount = matchDao
+				.countLobbyMatchesInADay(match.getLobby(), match.getMatchId())
+				.stream()
+				.filter(row -> getMatchRankedMode(row.get(0, String.class), row.get(1, Byte.class), row.get(2, MatchMap.class)) != null)
+				.mapToLong(row -> row.get(3, Long.class))
+				.sum();
+
+		return sameLobbyAmount > 2;
 	}
 
 	private EliteStreak updateEliteStreak(PlayerRank rank, boolean won) {
@@ -353,10 +415,29 @@ public class RankServiceImpl implements RankService {
 		return streak;
 	}
 
+	private List<RankedPlayer> getTopPlayers(RankedMode mode, int amount) {
+		byte season = getCurrentSeason();
+
+		if (!leaderboardIndex.isLoaded(season, mode)) {
+			leaderboardIndex.load(season, mode, () -> rankDao.findSeasonRanks(season, mode));
+		}
+
+		return leaderboardIndex.getTopPlayers(season, mode, amount);
+	}
+
 	@Override
 	public Map<RankedMode, List<RankedPlayer>> getTopPlayers() {
-        Map<RankedMode, List<PlayerRank>> topPlayers = rankDao.findTopPlayers(getCurrentSeason(), 5);
-        return convertPlayers(topPlayers);
+		Map<RankedMode, List<RankedPlayer>> result = new HashMap<>();
+
+		for (RankedMode rankedMode : RankedMode.realValues()) {
+			List<RankedPlayer> topPlayers = getTopPlayers(rankedMode, 5);
+
+			if (!topPlayers.isEmpty()) {
+				result.put(rankedMode, topPlayers);
+			}
+		}
+
+		return result;
 	}
 
     @Override
@@ -380,29 +461,31 @@ public class RankServiceImpl implements RankService {
 
     @Override
 	public List<RankedPlayer> getTopPlayers(RankedMode mode) {
-		return rankDao
-				.findTopPlayers(getCurrentSeason(), mode, 50)
-				.stream()
-				.map(this::convertPlayer)
-				.collect(Collectors.toList());
+		return getTopPlayers(mode, 50);
 	}
 
 	@Override
 	public void setRank(long steamId64, RankedMode mode, byte rank) {
-		PlayerRank playerRank = rankDao.findPlayerRank(steamId64, getCurrentSeason(), mode);
-		playerRank.setRank(rank);
-		rankDao.save(playerRank);
+		playerLocks.locked(steamId64, () -> {
+			PlayerRank playerRank = rankDao.findPlayerRank(steamId64, getCurrentSeason(), mode);
+			playerRank.setRank(rank);
+			rankDao.save(playerRank);
+			invalidateRanks(Collections.singleton(steamId64));
+		});
 	}
 
 	@Override
 	public void setStreak(long steamId64, RankedMode mode, short current, short max) {
-		PlayerRank playerRank = rankDao.findPlayerRank(steamId64, getCurrentSeason(), mode);
-		EliteStreak streak = playerRank.getStreak();
+		playerLocks.locked(steamId64, () -> {
+			PlayerRank playerRank = rankDao.findPlayerRank(steamId64, getCurrentSeason(), mode);
+			EliteStreak streak = playerRank.getStreak();
 
-		if (streak != null) {
-			streak.setCurrentStreak(current);
-			streak.setMaxStreak(max);
-			rankDao.save(playerRank);
-		}
+			if (streak != null) {
+				streak.setCurrentStreak(current);
+				streak.setMaxStreak(max);
+				rankDao.save(playerRank);
+				invalidateRanks(Collections.singleton(steamId64));
+			}
+		});
 	}
 }
@@ -0,0 +1,170 @@
+package com.dglab.cia.persistence;
+
+import com.dglab.cia.JsonUtil;
+import com.dglab.cia.util.ETags;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialized responses of the read-only routes, evicted least recently used first once over cia.responseCache.bytes.
+ * Writers invalidate what they change, the TTL only bounds staleness of data that changes without an event.
+ * Each entry carries the ETag of its body for conditional requests and a gzipped copy of larger bodies.
+ *
+ * @author doc
+ */
+@Component
+public class ResponseCache {
+	private static final long MAX_BYTES = Long.getLong("cia.responseCache.bytes", 32 * 1024 * 1024);
+
+	public enum Type {
+		MATCH(10, TimeUnit.MINUTES),
+		PLAYER_MATCHES(10, TimeUnit.MINUTES),
+		PLAYER_RANKS(10, TimeUnit.MINUTES),
+		RANK_HISTORY(10, TimeUnit.MINUTES),
+		TOP_PLAYERS(5, TimeUnit.MINUTES),
+		MODE_TOP_PLAYERS(5, TimeUnit.MINUTES),
+		RANKED_INFO(5, TimeUnit.MINUTES),
+		// Updated by every finished match and by the recalculations, both invalidate them
+		WIN_RATES(5, TimeUnit.MINUTES),
+		WIN_RATE_SERIES(5, TimeUnit.MINUTES);
+
+		private final long ttl;
+
+		Type(long ttl, TimeUnit unit) {
+			this.ttl = unit.toMillis(ttl);
+		}
+	}
+
+	public interface Loader {
+		byte[] load() throws Exception;
+	}
+
+	private static class Key {
+		private final Type type;
+		private final Object id;
+
+		private Key(Type type, Object id) {
+			this.type = type;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			Key key = (Key) o;
+
+			return type == key.type && Objects.equals(id, key.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + Objects.hashCode(id);
+		}
+	}
+
+	public static class Entry {
+		private final byte[] body;
+		private final byte[] gzipped;
+		private final String eTag;
+		private final long expires;
+
+		private Entry(byte[] body, long expires) throws IOException {
+			this.body = body;
+			this.gzipped = JsonUtil.gzip(body);
+			this.eTag = ETags.of(body);
+			this.expires = expires;
+		}
+
+		private long size() {
+			return body.length + (gzipped != null ? gzipped.length : 0);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public byte[] getGzipped() {
+			return gzipped;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+	}
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private final long[] generations = new long[Type.values().length];
+	private long bytes;
+
+	// The id is null for routes without parameters
+	public Entry get(Type type, Object id, Loader loader) throws Exception {
+		Key key = new Key(type, id);
+		long generation;
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				return entry;
+			}
+
+			generation = generations[type.ordinal()];
+		}
+
+		Entry entry = new Entry(loader.load(), System.currentTimeMillis() + type.ttl);
+
+		// A load that overlapped an invalidation of its type may have read the old data, so it is not kept
+		synchronized (this) {
+			if (generation == generations[type.ordinal()]) {
+				remove(entries.put(key, entry));
+				bytes += entry.size();
+				evict();
+			}
+		}
+
+		return entry;
+	}
+
+	public synchronized void invalidate(Type type, Object id) {
+		generations[type.ordinal()]++;
+		remove(entries.remove(new Key(type, id)));
+	}
+
+	public synchronized void invalidate(Type type) {
+		generations[type.ordinal()]++;
+
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Entry> entry = iterator.next();
+
+			if (entry.getKey().type == type) {
+				remove(entry.getValue());
+				iterator.remove();
+			}
+		}
+	}
+
+	private void remove(Entry entry) {
+		if (entry != null) {
+			bytes -= entry.size();
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+
+		while (bytes > MAX_BYTES && iterator.hasNext()) {
+			remove(iterator.next());
+			iterator.remove();
+		}
+	}
+}
@@ -5,30 +5,39 @@ import com.dglab.cia.json.HeroWinRateAndGames;
 import com.dglab.cia.json.MatchDateCount;
 import com.dglab.cia.json.MatchMap;
 import com.dglab.cia.json.RankRange;
-import org.apache.commons.lang.NotImplementedException;
 import org.hibernate.*;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
-import org.hibernate.type.LocalDateType;
+import org.hibernate.type.InstantType;
 import org.hibernate.type.StandardBasicTypes;
 import org.hibernate.type.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.*;
 import javax.persistence.metamodel.EntityType;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalField;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -42,131 +51,342 @@ public class StatsDao {
 	@PersistenceContext
 	private EntityManager entityManager;
 
-    private void increaseHeroGames(String hero, Match match, RankRange rankRange, Map<HeroWinRateKey, Integer> map) {
-        HeroWinRateKey key = new HeroWinRateKey();
-        key.setHeroName(hero);
-        key.setMap(match.getMap());
-        key.setMode(match.getMode());
-        key.setPlayers(match.getPlayers());
-        key.setRankRange(rankRange);
+    private static final int WIN_RATE_DAYS = 7;
+    private static final int WIN_RATE_PARALLELISM = Integer.getInteger("cia.winRateParallelism", 4);
+    private static final int HERO_ROUND_FETCH_SIZE = 10000;
+    private static final MatchMap[] MAPS = MatchMap.values();
 
-        Integer integer = map.get(key);
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
 
-        if (integer == null) {
-            integer = 0;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private void countHeroGames(Match match, RankRange rankRange, HeroWinRateCounter counter) {
+        Map<Long, Byte> playerTeams = match.getMatchData()
+                .stream()
+                .collect(Collectors.toMap(
+                        p -> p.getPk().getSteamId64(), PlayerMatchData::getTeam
+                ));
+
+        LocalDate day = match.getDateTime().atZone(ZoneOffset.UTC).toLocalDate();
+
+        for (Round round : match.getRounds()) {
+            if (round.getWinner() == null) {
+                continue;
+            }
+
+            for (PlayerRoundData roundData : round.getPlayerRoundData()) {
+                if (roundData.getHero() == null) {
+                    continue;
+                }
+
+                Byte team = playerTeams.get(roundData.getPk().getSteamId64());
+
+                counter.add(
+                        roundData.getHero(),
+                        match.getMode(),
+                        match.getPlayers(),
+                        match.getMap(),
+                        rankRange,
+                        day,
+                        Objects.equals(round.getWinner(), team)
+                );
+            }
         }
+    }
+
+    private boolean hasRankOnePlayer(Match match) {
+        Collection<Long> players = match.getMatchData()
+                .stream()
+                .map(data -> data.getPk().getSteamId64())
+                .collect(Collectors.toList());
 
-        map.put(key, ++integer);
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<PlayerRank> root = query.from(PlayerRank.class);
+        query.select(builder.count(root));
+        query.where(
+                root.get("pk").get("steamId64").in(players),
+                builder.equal(root.get("rank"), 1)
+        );
+
+        return !players.isEmpty() && entityManager.createQuery(query).getSingleResult() > 0;
     }
 
-    // Vendor-locked
-    public void recalculateRankOneWinRates() {
-        Session session = entityManager.unwrap(Session.class);
-        Query query = session
-                .createSQLQuery(
-                    "select m.* from player_ranks as pr\n" +
-                    "join player_match_data as pmd on pmd.steamId64 = pr.steamId64\n" +
-                    "join matches as m " +
-                            "on m.matchid = pmd.matchid " +
-                            "and playerAmount > 1 " +
-                            "and datetime >= current_date - cast('7 day' as INTERVAL)\n" +
-                    "where pr.\"RANK\" = '1'\n" +
-                    "group by m.matchid"
-                ).addEntity(Match.class);
-
-        query.setReadOnly(true);
-
-        recalculateWinRates(session, query.scroll(ScrollMode.FORWARD_ONLY), RankRange.RANK_ONE);
+    public void addMatchWinRates(Match match) {
+        HeroWinRateCounter counter = new HeroWinRateCounter();
+
+        byte players = match.getPlayers();
+
+        if (players == 2 || players == 4 || players == 6) {
+            countHeroGames(match, RankRange.ALL, counter);
+        }
+
+        if (players > 1 && hasRankOnePlayer(match)) {
+            countHeroGames(match, RankRange.RANK_ONE, counter);
+        }
+
+        if (counter.isEmpty()) {
+            return;
+        }
+
+        Map<RankRange, Set<String>> heroes = new EnumMap<>(RankRange.class);
+
+        counter.forEach((key, wins, games) -> {
+            addDayGames(key, wins, games);
+
+            heroes.computeIfAbsent(key.getHeroKey().getRankRange(), range -> new HashSet<>())
+                    .add(key.getHeroKey().getHeroName());
+        });
+
+        heroes.forEach((range, names) -> refreshWinRates(range, match, names));
     }
 
-    public void recalculateAllWinRates() {
-        Session session = entityManager.unwrap(Session.class);
-
-        Criteria criteria = session
-                .createCriteria(Match.class)
-                .add(Restrictions.or(
-                        Restrictions.eq("players", (byte) 2),
-                        Restrictions.eq("players", (byte) 4),
-                        Restrictions.eq("players", (byte) 6)
-                ))
-                .add(Restrictions.gt("dateTime", Instant.now().minus(7, ChronoUnit.DAYS)))
-                .setReadOnly(true);
-
-        recalculateWinRates(session, criteria.scroll(ScrollMode.FORWARD_ONLY), RankRange.ALL);
+    // Vendor-locked (postgres upsert)
+    private void addDayGames(HeroWinRateDayKey key, int wins, int games) {
+        HeroWinRateKey heroKey = key.getHeroKey();
+
+        entityManager.createNativeQuery(
+                "insert into hero_win_rate_days (hero, \"mode\", playerAmount, \"map\", rankRange, \"day\", wins, games)\n" +
+                "values (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8)\n" +
+                "on conflict (hero, \"mode\", playerAmount, \"map\", rankRange, \"day\") do update set " +
+                        "wins = hero_win_rate_days.wins + excluded.wins, " +
+                        "games = hero_win_rate_days.games + excluded.games"
+        )
+                .setParameter(1, heroKey.getHeroName())
+                .setParameter(2, heroKey.getMode())
+                .setParameter(3, heroKey.getPlayers())
+                .setParameter(4, heroKey.getMap().ordinal())
+                .setParameter(5, heroKey.getRankRange().ordinal())
+                .setParameter(6, java.sql.Date.valueOf(key.getDay()))
+                .setParameter(7, wins)
+                .setParameter(8, games)
+                .executeUpdate();
     }
 
-    public void recalculateWinRates(Session session, ScrollableResults results, RankRange rankRange) {
-        log.info("Started calculating win-rates");
+    // Vendor-locked (postgres upsert), sums up the day buckets of the window into hero_win_rates
+    private void refreshWinRates(RankRange range, Match match, Collection<String> heroes) {
+        String restriction = "";
 
-        Map<HeroWinRateKey, Integer> heroWins = new HashMap<>();
-        Map<HeroWinRateKey, Integer> heroLosses = new HashMap<>();
+        if (match != null) {
+            restriction = "and \"mode\" = :mode and playerAmount = :players and \"map\" = :map and hero in (:heroes)\n";
+        }
 
-        int count = 0;
+        javax.persistence.Query query = entityManager.createNativeQuery(
+                "insert into hero_win_rates (hero, \"mode\", playerAmount, \"map\", rankRange, winRate, games)\n" +
+                "select hero, \"mode\", playerAmount, \"map\", rankRange, " +
+                        "sum(wins) / cast(sum(games) as real), sum(games)\n" +
+                "from hero_win_rate_days\n" +
+                "where rankRange = :range and \"day\" >= :since\n" +
+                restriction +
+                "group by hero, \"mode\", playerAmount, \"map\", rankRange\n" +
+                "on conflict (hero, \"mode\", playerAmount, \"map\", rankRange) do update set " +
+                        "winRate = excluded.winRate, games = excluded.games"
+        )
+                .setParameter("range", range.ordinal())
+                .setParameter("since", java.sql.Date.valueOf(windowStart(LocalDate.now(ZoneOffset.UTC))));
+
+        if (match != null) {
+            query
+                    .setParameter("mode", match.getMode())
+                    .setParameter("players", match.getPlayers())
+                    .setParameter("map", match.getMap().ordinal())
+                    .setParameter("heroes", heroes);
+        }
 
-        while (results.next()) {
-            Match match = (Match) results.get()[0];
+        query.executeUpdate();
+    }
 
-            Hibernate.initialize(match.getMatchData());
-            Hibernate.initialize(match.getRounds());
+    public void slideWinRateWindow() {
+        int removed = entityManager
+                .createNativeQuery("delete from hero_win_rate_days where \"day\" < ?1")
+                .setParameter(1, java.sql.Date.valueOf(windowStart(LocalDate.now(ZoneOffset.UTC))))
+                .executeUpdate();
 
-            Map<Long, Byte> playerTeams = match.getMatchData()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            p -> p.getPk().getSteamId64(), PlayerMatchData::getTeam
-                    ));
+        for (RankRange range : RankRange.values()) {
+            rebuildWinRates(range);
+        }
 
-            for (Round round : match.getRounds()) {
-                if (round.getWinner() == null) {
-                    continue;
-                }
+        log.info("Win-rate window moved, {} day buckets dropped", removed);
+    }
 
-                Hibernate.initialize(round.getPlayerRoundData());
+    // Day buckets are keyed in UTC, the window holds the current day and the ones before it
+    private static LocalDate windowStart(LocalDate today) {
+        return today.minusDays(WIN_RATE_DAYS - 1);
+    }
 
-                for (PlayerRoundData roundData : round.getPlayerRoundData()) {
-                    if (roundData.getHero() == null) {
-                        continue;
-                    }
+    private void rebuildWinRates(RankRange range) {
+        entityManager
+                .createNativeQuery("delete from hero_win_rates where rankRange = ?1")
+                .setParameter(1, range.ordinal())
+                .executeUpdate();
 
-                    Byte team = playerTeams.get(roundData.getPk().getSteamId64());
-                    String hero = roundData.getHero();
+        refreshWinRates(range, null, null);
+    }
 
-                    if (Objects.equals(round.getWinner(), team)) {
-                        increaseHeroGames(hero, match, rankRange, heroWins);
-                    } else {
-                        increaseHeroGames(hero, match, rankRange, heroLosses);
-                    }
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void recalculateRankOneWinRates() {
+        recalculateWinRates(
+                RankRange.RANK_ONE,
+                "m.playerAmount > 1 and m.matchId in (\n" +
+                "    select pmd.matchId from player_ranks as pr\n" +
+                "    join player_match_data as pmd on pmd.steamId64 = pr.steamId64\n" +
+                "    where pr.\"RANK\" = '1'\n" +
+                ")"
+        );
+    }
 
-                    session.evict(roundData);
-                }
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void recalculateAllWinRates() {
+        recalculateWinRates(RankRange.ALL, "m.playerAmount in (2, 4, 6)");
+    }
 
-                session.evict(round);
-            }
+    // Vendor-locked (postgres), one flat (mode, players, map, date, round winner, team, hero) row per hero-round
+    private ScrollableResults scrollHeroRounds(Session session, String restriction, Instant from, Instant to) {
+        return session
+                .createSQLQuery(
+                    "select m.\"MODE\" as matchMode, m.playerAmount as players, m.\"MAP\" as matchMap, " +
+                            "m.dateTime as dateTime, r.winner as winner, pmd.team as team, prd.hero as hero\n" +
+                    "from matches as m\n" +
+                    "join rounds as r on r.matchId = m.matchId and r.winner is not null\n" +
+                    "join player_round_data as prd " +
+                            "on prd.matchId = r.matchId and prd.\"NUMBER\" = r.\"NUMBER\" and prd.hero is not null\n" +
+                    "left join player_match_data as pmd " +
+                            "on pmd.matchId = m.matchId and pmd.steamId64 = prd.steamId64\n" +
+                    "where m.dateTime >= :from and m.dateTime < :to and " + restriction
+                )
+                .addScalar("matchMode", StandardBasicTypes.STRING)
+                .addScalar("players", StandardBasicTypes.BYTE)
+                .addScalar("matchMap", StandardBasicTypes.INTEGER)
+                .addScalar("dateTime", InstantType.INSTANCE)
+                .addScalar("winner", StandardBasicTypes.BYTE)
+                .addScalar("team", StandardBasicTypes.BYTE)
+                .addScalar("hero", StandardBasicTypes.STRING)
+                .setTimestamp("from", Date.from(from))
+                .setTimestamp("to", Date.from(to))
+                .setFetchSize(HERO_ROUND_FETCH_SIZE)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    // The finished days of the window are split into one partition per day, each scanned on its own
+    // read-only session. The current day keeps its incrementally collected buckets
+    private void recalculateWinRates(RankRange rankRange, String restriction) {
+        log.info("Started calculating {} win-rates, parallelism {}", rankRange, WIN_RATE_PARALLELISM);
+
+        long started = System.currentTimeMillis();
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        LocalDate first = windowStart(today);
+        int days = (int) ChronoUnit.DAYS.between(first, today);
 
-            match.getMatchData().forEach(session::evict);
-            session.evict(match);
+        ExecutorService executor = Executors.newFixedThreadPool(WIN_RATE_PARALLELISM);
+        List<Future<HeroWinRateCounter>> partitions = new ArrayList<>();
+        HeroWinRateCounter counter = new HeroWinRateCounter();
 
-            if (++count > 0 && count % 1000 == 0) {
-                log.info("Processed {} matches", count);
+        try {
+            for (int day = 0; day < days; day++) {
+                int partition = day;
+                Instant from = first.plusDays(day).atStartOfDay(ZoneOffset.UTC).toInstant();
+                Instant to = from.plus(1, ChronoUnit.DAYS);
+
+                partitions.add(executor.submit(() -> scanPartition(restriction, rankRange, partition, from, to)));
+            }
+
+            for (Future<HeroWinRateCounter> partition : partitions) {
+                counter.merge(partition.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Win-rate calculation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Win-rate partition failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
-        for (HeroWinRateKey key : heroWins.keySet()) {
-            Integer wins = heroWins.get(key);
-            Integer losses = heroLosses.get(key);
+        new TransactionTemplate(transactionManager).execute(status -> {
+            replaceDayBuckets(rankRange, counter, today);
+            return null;
+        });
 
-            if (losses == null) {
-                losses = 0;
-            }
+        log.info("Finished calculating {} win-rates in {} ms", rankRange, System.currentTimeMillis() - started);
+    }
+
+    private HeroWinRateCounter scanPartition(
+            String restriction,
+            RankRange rankRange,
+            int partition,
+            Instant from,
+            Instant to
+    ) {
+        long started = System.currentTimeMillis();
+        HeroWinRateCounter counter = new HeroWinRateCounter();
+        EntityManager partitionManager = entityManagerFactory.createEntityManager();
+        int count = 0;
+
+        try {
+            Session session = partitionManager.unwrap(Session.class);
 
-            HeroWinRate winRate = new HeroWinRate();
-            winRate.setPk(key);
-            winRate.setWinRate(wins / (float) (wins + losses));
-            winRate.setGames(wins + losses);
+            Transaction transaction = session.beginTransaction();
+            session.doWork(connection -> connection.setReadOnly(true));
 
-            entityManager.merge(winRate);
+            try (ScrollableResults results = scrollHeroRounds(session, restriction, from, to)) {
+                while (results.next()) {
+                    Object[] row = results.get();
+                    Instant dateTime = (Instant) row[3];
+
+                    counter.add(
+                            (String) row[6],
+                            (String) row[0],
+                            (Byte) row[1],
+                            MAPS[(Integer) row[2]],
+                            rankRange,
+                            dateTime.atZone(ZoneOffset.UTC).toLocalDate(),
+                            Objects.equals(row[4], row[5])
+                    );
+
+                    count++;
+                }
+            } finally {
+                transaction.rollback();
+            }
+        } finally {
+            partitionManager.close();
         }
 
-        log.info("Finished calculating win-rates");
+        log.info(
+                "Win-rate partition {} ({} - {}): {} hero-rounds, {} day buckets in {} ms",
+                partition, from, to, count, counter.size(), System.currentTimeMillis() - started
+        );
+
+        return counter;
+    }
+
+    // Vendor-locked (postgres), rescanned day buckets replace the incrementally collected ones of the
+    // finished days. The table lock holds back addMatchWinRates until the swap is committed
+    private void replaceDayBuckets(RankRange rankRange, HeroWinRateCounter counter, LocalDate today) {
+        entityManager
+                .createNativeQuery("lock table hero_win_rate_days in share row exclusive mode")
+                .executeUpdate();
+
+        entityManager
+                .createNativeQuery("delete from hero_win_rate_days where rankRange = ?1 and \"day\" < ?2")
+                .setParameter(1, rankRange.ordinal())
+                .setParameter(2, java.sql.Date.valueOf(today))
+                .executeUpdate();
+
+        counter.forEach((key, wins, games) -> {
+            HeroWinRateDay day = new HeroWinRateDay();
+            day.setPk(key);
+            day.setWins(wins);
+            day.setGames(games);
+
+            entityManager.persist(day);
+        });
+
+        entityManager.flush();
+        rebuildWinRates(rankRange);
     }
 
     private <T, N> Predicate createRestriction(CriteriaBuilder b, Root<N> root, String property, Collection<T> values) {
@@ -244,55 +464,56 @@ public class StatsDao {
         return entityManager.createQuery(query).getResultList();
     }
 
-    public void recalculateTodayGameCounts() {
-        LocalDate today = ZonedDateTime
-                .now(ZoneOffset.UTC)
-                .withMonth(7)
-                .withDayOfMonth(16)
-                .withHour(0)
-                .withMinute(0)
-                .withSecond(0)
-                .toLocalDate();
-
-        Map<MatchKey, Integer> matches = new HashMap<>();
-        Session session = entityManager.unwrap(Session.class);
-
-        // Vendor-locked (hibernate + postgres)
-        ScrollableResults results = session
-                .createCriteria(Match.class)
-                .add(Restrictions.gt("players", (byte) 1))
-                .add(Restrictions.sqlRestriction("dateTime::DATE = ?", today, LocalDateType.INSTANCE))
-                .setReadOnly(true)
-                .scroll(ScrollMode.FORWARD_ONLY);
+    // Vendor-locked (postgres upsert)
+    public void addMatchCounts(Map<MatchKey, Integer> counts) {
+        counts.forEach((key, amount) -> entityManager.createNativeQuery(
+                "insert into match_day_counts (\"mode\", playerAmount, \"map\", \"day\", matches)\n" +
+                "values (?1, ?2, ?3, ?4, ?5)\n" +
+                "on conflict (\"mode\", playerAmount, \"map\", \"day\") do update set " +
+                        "matches = match_day_counts.matches + excluded.matches"
+        )
+                .setParameter(1, key.getMode())
+                .setParameter(2, key.getPlayers())
+                .setParameter(3, key.getMap().ordinal())
+                .setParameter(4, java.sql.Date.valueOf(key.getDay()))
+                .setParameter(5, amount)
+                .executeUpdate());
+    }
 
-        while (results.next()) {
-            Match match = (Match) results.get()[0];
+    // Vendor-locked (postgres upsert), backfills the day counters from the finished matches.
+    // dateTime holds the wall time of the JVM zone, the days are keyed in UTC like addMatchCount does
+    public void rebuildMatchCounts() {
+        int days = entityManager.createNativeQuery(
+                "insert into match_day_counts (\"mode\", playerAmount, \"map\", \"day\", matches)\n" +
+                "select \"MODE\", playerAmount, \"MAP\", " +
+                        "cast((dateTime at time zone :zone) at time zone 'UTC' as date), count(*)\n" +
+                "from matches\n" +
+                "where playerAmount > 1 and winner <> 0\n" +
+                "group by 1, 2, 3, 4\n" +
+                "on conflict (\"mode\", playerAmount, \"map\", \"day\") do update set matches = excluded.matches"
+        )
+                .setParameter("zone", ZoneId.systemDefault().getId())
+                .executeUpdate();
+
+        log.info("Rebuilt {} match day counters", days);
+    }
 
-            MatchKey key = new MatchKey();
-            key.setMap(match.getMap());
-            key.setMode(match.getMode());
-            key.setPlayers(match.getPlayers());
+    public Map<LocalDate, Integer> getMatchCounts(LocalDate from, LocalDate to) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<MatchCount> root = query.from(MatchCount.class);
+        Path<LocalDate> day = root.get("pk").get("day");
 
-            Integer integer = matches.get(key);
+        query.multiselect(day, builder.sumAsLong(root.get("matches")));
+        query.where(builder.between(day, from, to));
+        query.groupBy(day);
 
-            if (integer == null) {
-                integer = 0;
-            }
+        Map<LocalDate, Integer> counts = new TreeMap<>();
 
-            matches.put(key, ++integer);
-            session.evict(match);
+        for (Tuple tuple : entityManager.createQuery(query).getResultList()) {
+            counts.put(tuple.get(0, LocalDate.class), tuple.get(1, Long.class).intValue());
         }
 
-        matches.forEach((key, amount) -> {
-            MatchCount matchCount = new MatchCount();
-            matchCount.setPk(key);
-            matchCount.setMatches(amount);
-
-            entityManager.merge(matchCount);
-        });
-    }
-
-    public List<MatchCount> getLastMatchCounts() {
-        throw new NotImplementedException();
+        return counts;
     }
 }
@@ -1,7 +1,11 @@
 package com.dglab.cia.persistence;
 
+import com.dglab.cia.database.Match;
 import com.dglab.cia.json.HeroWinRateAndGames;
+import com.dglab.cia.json.MatchCounts;
+import com.dglab.cia.json.WinRateSeries;
 
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
 
@@ -11,6 +15,11 @@ import java.util.Map;
 public interface StatsService {
 	List<HeroWinRateAndGames> getGeneralWinRates();
     List<HeroWinRateAndGames> getRankOneWinRates();
+    WinRateSeries getWinRateSeries();
     void runAllWinRatesRecalculation();
     void runRankOneWinRatesRecalculation();
+    void addMatchWinRates(Match match);
+    void addMatchCount(Match match);
+    void rebuildMatchCounts();
+    MatchCounts getMatchCounts(LocalDate from, LocalDate to);
 }
@@ -1,7 +1,11 @@
 package com.dglab.cia.persistence;
 
+import com.dglab.cia.database.Match;
+import com.dglab.cia.database.MatchKey;
 import com.dglab.cia.json.HeroWinRateAndGames;
+import com.dglab.cia.json.MatchCounts;
 import com.dglab.cia.json.RankRange;
+import com.dglab.cia.json.WinRateSeries;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,7 +13,12 @@ import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author doc
@@ -21,24 +30,134 @@ public class StatsServiceImpl implements StatsService {
 	@Autowired
 	private StatsDao statsDao;
 
-    // Every day at midnight
-    @Scheduled(cron = "0 0 0 * * *")
+	@Autowired
+	private ResponseCache responseCache;
+
+    private final Map<MatchKey, Integer> pendingMatchCounts = new HashMap<>();
+
+    // Held while the day counters are written, so a flush and a rebuild do not overlap
+    private final Object matchCountsWrite = new Object();
+
+    // Win-rates are updated as matches finish, the full rescans only reconcile the day buckets
+    // Every monday at 4 AM
+    @Scheduled(cron = "0 0 4 * * MON")
     @Async
     public void runAllWinRatesRecalculation() {
         statsDao.recalculateAllWinRates();
+        responseCache.invalidate(ResponseCache.Type.WIN_RATES);
+        responseCache.invalidate(ResponseCache.Type.WIN_RATE_SERIES);
     }
 
-    // Every day at 10 minutes past midnight
-    @Scheduled(cron = "0 10 0 * * *")
+    // Every monday at 10 minutes past 4 AM
+    @Scheduled(cron = "0 10 4 * * MON")
     @Async
     public void runRankOneWinRatesRecalculation() {
         statsDao.recalculateRankOneWinRates();
+        responseCache.invalidate(ResponseCache.Type.WIN_RATES);
+        responseCache.invalidate(ResponseCache.Type.WIN_RATE_SERIES);
+    }
+
+    // Every day at midnight UTC, when the daily buckets roll over
+    @Scheduled(cron = "0 0 0 * * *", zone = "UTC")
+    private void winRateWindowTask() {
+        statsDao.slideWinRateWindow();
+        responseCache.invalidate(ResponseCache.Type.WIN_RATES);
+        responseCache.invalidate(ResponseCache.Type.WIN_RATE_SERIES);
+    }
+
+    @Override
+    public void addMatchWinRates(Match match) {
+        try {
+            statsDao.addMatchWinRates(match);
+        } catch (Exception e) {
+            log.warn("Could not update win-rates for match {}: {}", match.getMatchId(), e.toString());
+        }
+    }
+
+    @Override
+    public void addMatchCount(Match match) {
+        if (match.getPlayers() <= 1) {
+            return;
+        }
+
+        MatchKey key = new MatchKey();
+        key.setMode(match.getMode());
+        key.setPlayers(match.getPlayers());
+        key.setMap(match.getMap());
+        key.setDay(match.getDateTime().atZone(ZoneOffset.UTC).toLocalDate());
+
+        // Only committed matches are pending, so a rebuild can take their place
+        Transactions.afterCommit(() -> {
+            synchronized (this) {
+                pendingMatchCounts.merge(key, 1, Integer::sum);
+            }
+        });
+    }
+
+    // Every minute, counts of matches finished since the last flush are added to the day counters
+    @Scheduled(fixedDelay = 60000)
+    @PreDestroy
+    public void flushMatchCounts() {
+        synchronized (matchCountsWrite) {
+            Map<MatchKey, Integer> counts = takePendingMatchCounts();
+
+            if (counts.isEmpty()) {
+                return;
+            }
+
+            try {
+                statsDao.addMatchCounts(counts);
+            } catch (Exception e) {
+                log.warn("Could not flush match counts: {}", e.toString());
+                restorePendingMatchCounts(counts);
+            }
+        }
     }
 
-    // Every 10 minutes
-    @Scheduled(cron = "0 */10 * * * *")
-    private void gameCountsTask() {
-        statsDao.recalculateTodayGameCounts();
+    @Override
+    @Async
+    public void rebuildMatchCounts() {
+        // The rebuild counts every committed match, so the pending ones are dropped before it starts.
+        // A match committed just before the rebuild starts but added here after the swap is counted twice.
+        synchronized (matchCountsWrite) {
+            Map<MatchKey, Integer> dropped = takePendingMatchCounts();
+
+            try {
+                statsDao.rebuildMatchCounts();
+            } catch (RuntimeException e) {
+                restorePendingMatchCounts(dropped);
+                throw e;
+            }
+        }
+    }
+
+    private synchronized Map<MatchKey, Integer> takePendingMatchCounts() {
+        Map<MatchKey, Integer> counts = new HashMap<>(pendingMatchCounts);
+        pendingMatchCounts.clear();
+
+        return counts;
+    }
+
+    private synchronized void restorePendingMatchCounts(Map<MatchKey, Integer> counts) {
+        counts.forEach((key, amount) -> pendingMatchCounts.merge(key, amount, Integer::sum));
+    }
+
+    @Override
+    public MatchCounts getMatchCounts(LocalDate from, LocalDate to) {
+        Map<LocalDate, Integer> counts = statsDao.getMatchCounts(from, to);
+
+        synchronized (this) {
+            pendingMatchCounts.forEach((key, amount) -> {
+                if (!key.getDay().isBefore(from) && !key.getDay().isAfter(to)) {
+                    counts.merge(key.getDay(), amount, Integer::sum);
+                }
+            });
+        }
+
+        MatchCounts matchCounts = new MatchCounts();
+        matchCounts.setCounts(counts);
+
+        return matchCounts;
     }
 
 	@Override
@@ -50,4 +169,13 @@ public class StatsServiceImpl implements StatsService {
     public List<HeroWinRateAndGames> getRankOneWinRates() {
         return statsDao.getHeroWinRates(RankRange.RANK_ONE);
     }
+
+    @Override
+    public WinRateSeries getWinRateSeries() {
+        WinRateSeries series = new WinRateSeries();
+        series.setGeneral(WinRateSeries.toSeries(getGeneralWinRates()));
+        series.setRankOne(WinRateSeries.toSeries(getRankOneWinRates()));
+
+        return series;
+    }
 }
@@ -0,0 +1,132 @@
+package com.dglab.cia;
+
+import com.dglab.cia.util.ETags;
+import com.dglab.cia.util.HttpBodies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendered pages kept as HTML, raw and gzipped, served without a call to storage.
+ * Every cia.view.refreshSeconds the pages are revalidated against storage with the ETag of their data
+ * and rendered again if it changed. Pages nobody asked for in a while are dropped, and past cia.view.maxPages
+ * the least recently requested page makes room for a new one.
+ *
+ * @author doc
+ */
+public class PageCache {
+	private static final Logger log = LoggerFactory.getLogger(PageCache.class);
+	private static final int REFRESH_SECONDS = Integer.getInteger("cia.view.refreshSeconds", 15);
+	private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	private static final int MAX_PAGES = Integer.getInteger("cia.view.maxPages", 256);
+
+	public interface Loader {
+		// Null if the data did not change since the given ETag
+		Page load(String dataETag) throws Exception;
+	}
+
+	public static class Page {
+		private final int status;
+		private final String dataETag;
+		private final String eTag;
+		private final byte[] html;
+		private final byte[] gzipped;
+
+		public Page(int status, String dataETag, String html) throws IOException {
+			this.status = status;
+			this.dataETag = dataETag;
+			this.html = html.getBytes(StandardCharsets.UTF_8);
+			this.eTag = ETags.of(this.html);
+			this.gzipped = HttpBodies.gzip(this.html);
+		}
+
+		// Written straight to the servlet response, spark does not touch a committed response
+		public Object write(Request request, Response response) throws IOException {
+			response.status(status);
+			response.type("text/html; charset=utf-8");
+			HttpBodies.write(request.raw(), response.raw(), html, gzipped, eTag);
+
+			return "";
+		}
+	}
+
+	private static class Entry {
+		private final Loader loader;
+		private volatile Page page;
+		private volatile long lastRequested;
+
+		private Entry(Loader loader, Page page) {
+			this.loader = loader;
+			this.page = page;
+			this.lastRequested = System.currentTimeMillis();
+		}
+	}
+
+	private final Map<String, Entry> entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PageCache.Entry> eldest) {
+			return size() > MAX_PAGES;
+		}
+	});
+	private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "page-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public PageCache() {
+		refresher.scheduleWithFixedDelay(this::refresh, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+	}
+
+	// Only successful pages are kept, errors are rendered on every request
+	public Page get(String key, Loader loader) throws Exception {
+		Entry entry = entries.get(key);
+
+		if (entry == null) {
+			Page page = loader.load(null);
+
+			if (page.status != 200) {
+				return page;
+			}
+
+			entry = new Entry(loader, page);
+			entries.put(key, entry);
+		}
+
+		entry.lastRequested = System.currentTimeMillis();
+		return entry.page;
+	}
+
+	private void refresh() {
+		long idle = System.currentTimeMillis() - IDLE_MILLIS;
+		Map<String, Entry> pages;
+
+		synchronized (entries) {
+			entries.values().removeIf(entry -> entry.lastRequested < idle);
+			pages = new HashMap<>(entries);
+		}
+
+		for (Map.Entry<String, Entry> entry : pages.entrySet()) {
+			try {
+				Page page = entry.getValue().loader.load(entry.getValue().page.dataETag);
+
+				if (page != null && page.status == 200) {
+					entry.getValue().page = page;
+				}
+			} catch (Exception e) {
+				log.warn("Could not refresh page {}, serving the previous one: {}", entry.getKey(), e.toString());
+			}
+		}
+	}
+}
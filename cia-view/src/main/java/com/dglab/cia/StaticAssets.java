@@ -0,0 +1,130 @@
+package com.dglab.cia;
+
+import com.dglab.cia.util.ETags;
+import com.dglab.cia.util.HttpBodies;
+import spark.Request;
+import spark.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Everything under /public on the classpath, read into memory at startup together with a gzipped copy,
+ * content type and ETag. Names with a content hash in them, like main.3f2a9c1d.css, are cached by clients for a year.
+ *
+ * @author doc
+ */
+public class StaticAssets {
+	private static final int MAX_AGE = 3600;
+	private static final int FINGERPRINTED_MAX_AGE = 365 * 24 * 3600;
+	private static final Pattern FINGERPRINTED = Pattern.compile(".*\\.[0-9a-f]{8,}\\.[^.]+$");
+
+	private static class Asset {
+		private final byte[] data;
+		private final byte[] gzipped;
+		private final String contentType;
+		private final String eTag;
+		private final String cacheControl;
+
+		private Asset(String name, byte[] data) throws IOException {
+			this.data = data;
+			this.contentType = guessContentType(name, data);
+			this.eTag = ETags.of(data);
+			this.cacheControl = "public, max-age=" + (FINGERPRINTED.matcher(name).matches() ? FINGERPRINTED_MAX_AGE : MAX_AGE);
+			this.gzipped = compress(contentType, data);
+		}
+	}
+
+	private final Map<String, Asset> assets;
+
+	public StaticAssets(String root) throws IOException {
+		Map<String, Asset> assets = new HashMap<>();
+		URL url = getClass().getResource(root);
+
+		if (url != null) {
+			try {
+				URI uri = url.toURI();
+
+				if ("jar".equals(uri.getScheme())) {
+					try (FileSystem jar = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+						index(jar.getPath(root), assets);
+					}
+				} else {
+					index(Paths.get(uri), assets);
+				}
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+
+		this.assets = Collections.unmodifiableMap(assets);
+	}
+
+	private static void index(Path root, Map<String, Asset> assets) throws IOException {
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+				String name = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+				assets.put(name, new Asset(name, Files.readAllBytes(file)));
+			}
+		}
+	}
+
+	private static String guessContentType(String name, byte[] data) throws IOException {
+		String guessed = URLConnection.guessContentTypeFromName(name);
+
+		if (guessed == null && name.endsWith(".css")) {
+			guessed = "text/css";
+		}
+
+		if (guessed == null && name.endsWith(".js")) {
+			guessed = "application/javascript";
+		}
+
+		if (guessed == null) {
+			guessed = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(data));
+		}
+
+		return guessed;
+	}
+
+	// Images are compressed already, a gzipped copy is only kept where it is smaller
+	private static byte[] compress(String contentType, byte[] data) throws IOException {
+		if (contentType != null && contentType.startsWith("image/") && !contentType.equals("image/svg+xml")) {
+			return null;
+		}
+
+		return HttpBodies.gzip(data);
+	}
+
+	public int size() {
+		return assets.size();
+	}
+
+	public Object write(String name, Request request, Response response) throws IOException {
+		Asset asset = assets.get(name);
+
+		if (asset == null) {
+			response.status(404);
+			return "";
+		}
+
+		if (asset.contentType != null) {
+			response.type(asset.contentType);
+		}
+
+		response.header("Cache-Control", asset.cacheControl);
+		HttpBodies.write(request.raw(), response.raw(), asset.data, asset.gzipped, asset.eTag);
+
+		return "";
+	}
+}
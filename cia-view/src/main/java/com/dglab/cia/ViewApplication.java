@@ -1,12 +1,13 @@
 package com.dglab.cia;
 
-import com.dglab.cia.json.AllStats;
 import com.dglab.cia.json.util.ObjectMapperFactory;
 import com.dglab.cia.json.RankedPlayer;
+import com.dglab.cia.util.ServerThreads;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.request.HttpRequest;
 import de.neuland.jade4j.JadeConfiguration;
 import de.neuland.jade4j.template.TemplateLoader;
 import org.apache.commons.io.FileUtils;
@@ -24,17 +25,17 @@ import org.pac4j.sparkjava.RequiresAuthenticationFilter;
 import org.pac4j.sparkjava.SparkWebContext;
 import spark.ModelAndView;
 import spark.template.jade.JadeTemplateEngine;
-import spark.utils.GzipUtils;
 import spark.utils.IOUtils;
 
 import java.io.*;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -46,50 +47,24 @@ import static spark.Spark.*;
 public class ViewApplication {
 	public static final String PROXY_TARGET = "http://127.0.0.1:5141";
 
+	// Templates are read from the source tree when running from it, so edits show up without a restart
+	private static final boolean DEBUG_TEMPLATES = Files.isDirectory(Paths.get("src/main/resources/templates"));
+
 	private JadeTemplateEngine jadeTemplateEngine = createTemplateEngine();
 	private ObjectMapper mapper = ObjectMapperFactory.createObjectMapper();
+	private PageCache pageCache = new PageCache();
+	private StaticAssets staticAssets;
 
-	public ViewApplication() {
+	public ViewApplication() throws IOException {
 		port(80);
-		threadPool(4);
-
-		mapGet("/ranks/top/:mode", "ranks/top/byMode", new TypeReference<List<RankedPlayer>>(){});
-        mapGet("/", "home", new TypeReference<AllStats>(){});
-
-        // What a hack
-        get("/public/*", ((request, response) -> {
-            String path = request.splat()[0];
-            try (InputStream stream = getClass().getResourceAsStream("/public/" + path)) {
-                if (path.contains("/")) {
-                    path = path.substring(path.lastIndexOf('/') + 1);
-                }
-
-                byte[] data = IOUtils.toByteArray(stream);
-
-                String guessed = URLConnection.guessContentTypeFromName(path);
-
-                if (guessed == null && path.endsWith(".css")) {
-                    guessed = "text/css";
-                }
-
-                if (guessed == null) {
-                    guessed = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(data));
-                }
-
-                if (guessed != null) {
-                    response.type(guessed);
-                }
+		ServerThreads.configure("view", 32);
 
-                OutputStream wrappedOutputStream = GzipUtils.checkAndWrap(request.raw(), response.raw(), false);
+		staticAssets = new StaticAssets("/public");
 
-                wrappedOutputStream.write(data);
-
-                wrappedOutputStream.flush();
-                wrappedOutputStream.close();
-            }
+		mapGet("/ranks/top/:mode", "ranks/top/byMode", new TypeReference<List<RankedPlayer>>(){});
+        mapGet("/", "home", "/stats/winrates/series", null);
 
-            return "";
-        }));
+        get("/public/*", (request, response) -> staticAssets.write(request.splat()[0], request, response));
 
 		exception(Exception.class, (exception, request, response) -> {
 			exception.printStackTrace();
@@ -172,31 +147,67 @@ public class ViewApplication {
 	}
 
 	private void mapGet(String uri, String view, TypeReference<?> type) {
+		mapGet(uri, view, null, type);
+	}
+
+	// The page is rendered from the source URL of storage, or from the same path if there is none.
+	// Pages are cached by their route and path parameters, query strings do not make new pages
+	private void mapGet(String uri, String view, String source, TypeReference<?> type) {
 		get(uri, ((request, response) -> {
-			String queryString = (request.queryString() != null ? "?" + request.queryString() : "");
-			Map<String, String> headers = request.headers().stream().collect(Collectors.toMap(h -> h, request::headers));
-			HttpResponse<InputStream> answer = Unirest
-					.get(PROXY_TARGET + request.uri() + queryString)
-					.headers(headers)
-					.asBinary();
+			String sourceUrl = (source != null ? source : request.uri());
 
-			if (answer == null) {
-				return null;
+			if (DEBUG_TEMPLATES) {
+				return renderPage(sourceUrl, view, type, null).write(request, response);
 			}
 
-			response.status(answer.getStatus());
-			answer.getHeaders().forEach((header, values) -> {
-				response.header(header, StringUtils.join(values, ";"));
-			});
+			String key = uri + new TreeMap<>(request.params());
+
+			return pageCache.get(key, dataETag -> renderPage(sourceUrl, view, type, dataETag)).write(request, response);
+		}));
+	}
+
+	// Null if the data behind the page still has the given ETag
+	private PageCache.Page renderPage(String url, String view, TypeReference<?> type, String dataETag) throws Exception {
+		HttpRequest get = Unirest.get(PROXY_TARGET + url);
+
+		if (dataETag != null) {
+			get.header("If-None-Match", dataETag);
+		}
+
+		HttpResponse<InputStream> answer = get.asBinary();
 
-			Object result = mapper.readValue(IOUtils.toByteArray(answer.getBody()), type);
+		if (answer.getStatus() == 304) {
+			return null;
+		}
+
+		byte[] data = IOUtils.toByteArray(answer.getBody());
+		Object result;
+
+		// Without a type the JSON is embedded into a script as it is, a closing tag inside a string must not end the script
+		if (type == null) {
+			result = new String(data, StandardCharsets.UTF_8).replace("</", "<\\/");
+		} else {
+			result = mapper.readValue(data, type);
+		}
 
-			HashMap<Object, Object> model = new HashMap<>();
-			model.put("model", result);
-            model.put("stringUtils", StringUtils.class);
+		HashMap<Object, Object> model = new HashMap<>();
+		model.put("model", result);
+		model.put("stringUtils", StringUtils.class);
 
-			return new ModelAndView(model, view);
-		}), jadeTemplateEngine);
+		String html = jadeTemplateEngine.render(new ModelAndView(model, view));
+
+		return new PageCache.Page(answer.getStatus(), getHeader(answer, "ETag"), html);
+	}
+
+	private static String getHeader(HttpResponse<?> answer, String name) {
+		return answer
+				.getHeaders()
+				.entrySet()
+				.stream()
+				.filter(header -> header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+				.map(header -> header.getValue().get(0))
+				.findFirst()
+				.orElse(null);
 	}
 
     private JadeTemplateEngine createTemplateEngine() {
@@ -208,6 +219,10 @@ public class ViewApplication {
 
             @Override
             public long getLastModified(String name) throws IOException {
+                if (!DEBUG_TEMPLATES) {
+                    return -1;
+                }
+
                 Path debugPath = getDebugPath(name + ".jade");
 
                 if (Files.exists(debugPath)) {
@@ -221,7 +236,7 @@ public class ViewApplication {
             public Reader getReader(String name) throws IOException {
                 Path debugPath = getDebugPath(name);
 
-                if (Files.exists(debugPath)) {
+                if (DEBUG_TEMPLATES && Files.exists(debugPath)) {
                     return Files.newBufferedReader(debugPath);
                 }
 